@@ -0,0 +1,53 @@
+package hudson.plugins.swarm;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One of the agents listed under {@code agents} in a YAML configuration file. The options of the
+ * agent override the ones at the top of the file, which all agents share.
+ */
+public class AgentOptions {
+
+    public String name;
+
+    public String description;
+
+    /** The labels of this agent, instead of the shared ones. */
+    public List<String> labels;
+
+    public Integer executors;
+
+    public File fsroot;
+
+    /** Returns the options of this agent, based on a copy of the shared options. */
+    Options applyTo(Options shared) {
+        Options options = new Options();
+        for (Field field : Options.class.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                try {
+                    field.set(options, field.get(shared));
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        options.agents = null;
+        options.name = name;
+        if (description != null) {
+            options.description = description;
+        }
+        // The client adds the labels of its label sources to this list.
+        options.labels = new ArrayList<>(labels != null ? labels : shared.labels);
+        if (executors != null) {
+            options.executors = executors;
+        }
+        if (fsroot != null) {
+            options.fsroot = fsroot;
+        }
+        return options;
+    }
+}
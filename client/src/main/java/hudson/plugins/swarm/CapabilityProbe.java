@@ -0,0 +1,173 @@
+package hudson.plugins.swarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Probes a capability of the host, such as its number of CPUs, and describes it as a label.
+ *
+ * <p>Numeric capabilities can be put into buckets: the label then holds the largest threshold not
+ * above the probed value, so that small fluctuations do not change the label. Without thresholds,
+ * the label holds the probed value itself.
+ */
+enum CapabilityProbe {
+
+    /** The number of CPUs the client may use, taking a cgroup CPU quota into account. */
+    CORES {
+        @Override
+        String probe(Options options, long[] buckets) throws IOException {
+            long cores = Runtime.getRuntime().availableProcessors();
+            long quota = getCgroupCpuQuota();
+            if (quota > 0) {
+                cores = Math.min(cores, quota);
+            }
+            return label("cores-", bucket(cores, buckets), "");
+        }
+    },
+
+    /** The memory of the host in GiB, limited by a cgroup memory limit. */
+    MEMORY {
+        @Override
+        String probe(Options options, long[] buckets) throws IOException {
+            long bytes = getTotalMemory();
+            long limit = getCgroupMemoryLimit();
+            if (limit > 0) {
+                bytes = Math.min(bytes, limit);
+            }
+            return label("mem-", bucket(Math.round((double) bytes / GIB), buckets), "g");
+        }
+    },
+
+    /** The free disk space in GiB on the file system of the remote root directory. */
+    DISK {
+        @Override
+        String probe(Options options, long[] buckets) throws IOException {
+            long free = Files.getFileStore(existing(options.fsroot)).getUsableSpace() / GIB;
+            return label("disk-free-", bucket(free, buckets), "g");
+        }
+    },
+
+    /** The type of the file system of the remote root directory, such as {@code ext4}. */
+    FSTYPE {
+        @Override
+        String probe(Options options, long[] buckets) throws IOException {
+            String type = Files.getFileStore(existing(options.fsroot)).type();
+            return label("fs-", type.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9._-]", "_"), "");
+        }
+    };
+
+    private static final long GIB = 1024L * 1024L * 1024L;
+
+    private static final Path CGROUP = Paths.get("/sys/fs/cgroup");
+
+    /**
+     * @param buckets the thresholds in ascending order, or an empty array
+     * @return the label, or {@code null} if the value is below all thresholds
+     */
+    abstract String probe(Options options, long[] buckets) throws IOException;
+
+    static CapabilityProbe of(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown capability probe: " + name, e);
+        }
+    }
+
+    private static String label(String prefix, Object value, String suffix) {
+        return value == null ? null : prefix + value + suffix;
+    }
+
+    private static Long bucket(long value, long[] buckets) {
+        if (buckets.length == 0) {
+            return value;
+        }
+        Long result = null;
+        for (long bucket : buckets) {
+            if (bucket <= value) {
+                result = bucket;
+            }
+        }
+        return result;
+    }
+
+    /** The closest directory that exists, since the remote root directory may not be created yet. */
+    private static Path existing(File directory) {
+        Path path = directory.toPath().toAbsolutePath();
+        while (path.getParent() != null && !Files.exists(path)) {
+            path = path.getParent();
+        }
+        return path;
+    }
+
+    private static long getTotalMemory() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getTotalMemorySize();
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /** The CPU quota of a cgroup in whole CPUs, rounded up, or 0 if there is none. */
+    private static long getCgroupCpuQuota() throws IOException {
+        // cgroup v2: "<quota> <period>" or "max <period>"
+        String cpuMax = readCgroupFile("cpu.max");
+        if (cpuMax != null) {
+            String[] fields = cpuMax.split("\\s+");
+            if (fields.length == 2 && !fields[0].equals("max")) {
+                return divideRoundingUp(parseLong(fields[0], "cpu.max"), parseLong(fields[1], "cpu.max"));
+            }
+            return 0;
+        }
+        // cgroup v1: a quota of -1 means there is none
+        String quota = readCgroupFile("cpu/cpu.cfs_quota_us");
+        String period = readCgroupFile("cpu/cpu.cfs_period_us");
+        if (quota != null && period != null) {
+            long quotaMicros = parseLong(quota, "cpu/cpu.cfs_quota_us");
+            if (quotaMicros > 0) {
+                return divideRoundingUp(quotaMicros, parseLong(period, "cpu/cpu.cfs_period_us"));
+            }
+        }
+        return 0;
+    }
+
+    /** The memory limit of a cgroup in bytes, or 0 if there is none. */
+    private static long getCgroupMemoryLimit() throws IOException {
+        String limit = readCgroupFile("memory.max");
+        if (limit != null) {
+            return limit.equals("max") ? 0 : parseLong(limit, "memory.max");
+        }
+        limit = readCgroupFile("memory/memory.limit_in_bytes");
+        return limit == null ? 0 : parseLong(limit, "memory/memory.limit_in_bytes");
+    }
+
+    /** The first line of a cgroup file, or {@code null} if there is no such file. */
+    private static String readCgroupFile(String name) throws IOException {
+        Path file = CGROUP.resolve(name);
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+        return lines.isEmpty() ? null : lines.get(0).trim();
+    }
+
+    private static long parseLong(String value, String name) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected content of " + CGROUP.resolve(name) + ": " + value, e);
+        }
+    }
+
+    private static long divideRoundingUp(long dividend, long divisor) {
+        return divisor <= 0 ? 0 : (dividend + divisor - 1) / divisor;
+    }
+}
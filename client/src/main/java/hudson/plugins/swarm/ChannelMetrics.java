@@ -0,0 +1,182 @@
+package hudson.plugins.swarm;
+
+import hudson.remoting.Channel;
+import hudson.remoting.Command;
+import hudson.remoting.Request;
+import hudson.remoting.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the traffic on the Remoting channel to the controller: bytes and commands in each
+ * direction, the latency of requests this agent sends, the calls waiting for a response, and the
+ * round trip time of a periodic ping.
+ */
+final class ChannelMetrics extends Channel.Listener {
+
+    private static final Logger logger = Logger.getLogger(ChannelMetrics.class.getName());
+
+    private static final long PING_INTERVAL_SECONDS =
+            Long.getLong(ChannelMetrics.class.getName() + ".pingIntervalSeconds", 60);
+
+    private static final Set<Channel> channels = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Channel ping");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Timer requestDuration = Timer.builder("swarm.channel.request.duration")
+            .description("Time from sending a request to the controller until its response arrived")
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+
+    private static final Timer pingDuration = Timer.builder("swarm.channel.ping.duration")
+            .description("Round trip time of a ping to the controller")
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+
+    /** Requests the agents of this process sent that have not been answered yet. */
+    private static final AtomicLong outgoingPending =
+            Metrics.gauge("swarm.channel.pending.calls", Tags.of("direction", "outgoing"), new AtomicLong());
+
+    /** Requests from the controller the agents of this process have not answered yet. */
+    private static final AtomicLong incomingPending =
+            Metrics.gauge("swarm.channel.pending.calls", Tags.of("direction", "incoming"), new AtomicLong());
+
+    private static final Traffic received = new Traffic("received");
+    private static final Traffic sent = new Traffic("sent");
+
+    private final Channel channel;
+    private final AtomicLong outgoing = new AtomicLong();
+    private final AtomicLong incoming = new AtomicLong();
+    private ScheduledFuture<?> ping;
+    private boolean pingFailed;
+
+    private ChannelMetrics(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Registers the meters of the channel, so that they are exported from the start rather than
+     * once the first channel is seen.
+     */
+    static void register() {
+        // the meters are registered when this class is initialized
+    }
+
+    /** Starts recording the traffic on the channel, unless it is recorded already. */
+    static void attach(Channel channel) {
+        synchronized (channels) {
+            if (!channels.add(channel)) {
+                return;
+            }
+        }
+        ChannelMetrics listener = new ChannelMetrics(channel);
+        channel.addListener(listener);
+        if (PING_INTERVAL_SECONDS > 0) {
+            listener.ping =
+                    scheduler.scheduleWithFixedDelay(listener::ping, 0, PING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void onRead(Channel channel, Command cmd, long blockSize) {
+        received.record(cmd.getClass(), blockSize);
+        if (cmd instanceof Request) {
+            incoming.incrementAndGet();
+            incomingPending.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onWrite(Channel channel, Command cmd, long blockSize) {
+        sent.record(cmd.getClass(), blockSize);
+        if (cmd instanceof Request) {
+            outgoing.incrementAndGet();
+            outgoingPending.incrementAndGet();
+        } else if (cmd instanceof Response) {
+            incoming.decrementAndGet();
+            incomingPending.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void onResponse(Channel channel, Request<?, ?> req, Response<?, ?> rsp, long totalTime) {
+        outgoing.decrementAndGet();
+        outgoingPending.decrementAndGet();
+        requestDuration.record(totalTime, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onClosed(Channel channel, IOException cause) {
+        if (ping != null) {
+            ping.cancel(false);
+        }
+        // Calls on a closed channel are never answered.
+        outgoingPending.addAndGet(-outgoing.getAndSet(0));
+        incomingPending.addAndGet(-incoming.getAndSet(0));
+    }
+
+    /** Times a round trip that waits until the controller has executed everything sent before. */
+    private void ping() {
+        if (channel.isClosingOrClosed()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            channel.syncIO();
+            pingDuration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            pingFailed = false;
+        } catch (IOException e) {
+            logger.log(pingFailed ? Level.FINEST : Level.FINE, "Failed to ping the controller", e);
+            pingFailed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The counters of the traffic in one direction, created once rather than for every command. */
+    static final class Traffic {
+
+        private final String direction;
+        private final Counter bytes;
+        private final Map<Class<?>, Counter> commands = new ConcurrentHashMap<>();
+
+        Traffic(String direction) {
+            this.direction = direction;
+            this.bytes = Metrics.counter("swarm.channel.bytes", "direction", direction);
+        }
+
+        void record(Class<?> command, long blockSize) {
+            bytes.increment(blockSize);
+            commands.computeIfAbsent(command, this::commandCounter).increment();
+        }
+
+        private Counter commandCounter(Class<?> command) {
+            String name = command.getSimpleName();
+            return Metrics.counter(
+                    "swarm.channel.commands",
+                    "direction",
+                    direction,
+                    "command",
+                    name.isEmpty() ? command.getName() : name);
+        }
+    }
+}
@@ -11,7 +11,15 @@ import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kohsuke.args4j.CmdLineException;
@@ -26,6 +34,9 @@ public class Client {
     private static final String NON_FATAL_JNLP_AGENT_ENDPOINT_RESOLUTION_EXCEPTIONS =
             "hudson.remoting.Engine.nonFatalJnlpAgentEndpointResolutionExceptions";
 
+    /** The longest wait accepted from a {@code Retry-After} header, so that a bogus value cannot stall the agent. */
+    private static final long MAX_RETRY_AFTER_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
     // TODO: Cleanup the encoding issue
     @SuppressWarnings("lgtm[jenkins/unsafe-calls]")
     public static void main(String... args) throws InterruptedException {
@@ -63,8 +74,12 @@ public class Client {
             fail(e.getMessage());
         }
 
-        // Pass the command line arguments along so that the LabelFileWatcher thread can have them.
-        run(new SwarmClient(options), options, args);
+        if (options.agents != null) {
+            runAgents(options);
+        } else {
+            // Pass the command line arguments along so that the LabelFileWatcher thread can have them.
+            run(new SwarmClient(options), options);
+        }
     }
 
     private static boolean hasConflictingOptions(CmdLineParser parser) {
@@ -158,7 +173,7 @@ public class Client {
          * "Gets the fully qualified domain name for this IP address. Best effort method, meaning we
          * may not be able to return the FQDN depending on the underlying system configuration."
          */
-        if (options.name == null) {
+        if (options.name == null && options.agents == null) {
             try {
                 options.name = InetAddress.getLocalHost().getCanonicalHostName();
             } catch (UnknownHostException e) {
@@ -174,33 +189,103 @@ public class Client {
      *
      * <p>This method never returns.
      */
-    static void run(SwarmClient swarmClient, Options options, String... args) throws InterruptedException {
+    static void run(SwarmClient swarmClient, Options options) throws InterruptedException {
+        swarmClient.exitWithStatus(runAgent(swarmClient, options));
+    }
+
+    /**
+     * Run the agents listed in the configuration file on a shared thread pool, until all of them
+     * have exited. The agents share the HTTP client and the metrics registry; the Prometheus service
+     * and the metrics push are started once, with the first agent.
+     *
+     * <p>This method never returns.
+     */
+    static void runAgents(Options options) throws InterruptedException {
+        List<SwarmClient> swarmClients = new ArrayList<>();
+        List<Options> agentOptions = new ArrayList<>();
+        for (AgentOptions agent : options.agents) {
+            Options current = agent.applyTo(options);
+            if (!swarmClients.isEmpty()) {
+                current.prometheusPort = -1;
+                current.metricsPushUrl = null;
+            }
+            swarmClients.add(new SwarmClient(current));
+            agentOptions.add(current);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(swarmClients.size());
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < swarmClients.size(); i++) {
+            SwarmClient swarmClient = swarmClients.get(i);
+            Options current = agentOptions.get(i);
+            results.add(executor.submit(() -> {
+                Thread.currentThread().setName("Agent " + current.name);
+                return runAgent(swarmClient, current);
+            }));
+        }
+        executor.shutdown();
+
+        int status = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                int result = results.get(i).get();
+                logger.info("Agent " + agentOptions.get(i).name + " exited with status " + result);
+                status = Math.max(status, result);
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "Agent " + agentOptions.get(i).name + " failed", e.getCause());
+                status = 1;
+            }
+        }
+        swarmClients.get(0).exitWithStatus(status);
+    }
+
+    /**
+     * Keep the agent connected, registering it again whenever the connection is lost.
+     *
+     * @return the status to exit with once the agent gives up
+     */
+    static int runAgent(SwarmClient swarmClient, Options options) throws InterruptedException {
         logger.info("Connecting to Jenkins controller");
         URL url = swarmClient.getUrl();
 
+        LabelFileWatcher labelFileWatcher = null;
+        SwarmMetrics.bindConnectionState(swarmClient);
+
         // wait until we get the ACK back
         int retry = 0;
+        int waitTime = 0;
         while (true) {
+            String phase = "registration";
+            Duration retryAfter = null;
+            // Jenkins keeps the node of the agent, so try to connect to it with a single handshake.
+            boolean reconnecting = swarmClient.canReconnectWithoutRegistration();
             try {
-                logger.info("Attempting to connect to " + url);
-
-                /*
-                 * Create a new Swarm agent. After this method returns, the value of the name field
-                 * has been set to the name returned by the server, which may or may not be the name
-                 * we originally requested.
-                 */
-                swarmClient.createSwarmAgent(url);
+                if (reconnecting) {
+                    logger.info("Reconnecting to " + url + " as " + swarmClient.getName());
+                } else {
+                    logger.info("Attempting to connect to " + url);
+
+                    /*
+                     * Create a new Swarm agent. After this method returns, the value of the name
+                     * field has been set to the name returned by the server, which may or may not
+                     * be the name we originally requested.
+                     */
+                    swarmClient.createSwarmAgent(url);
+                    if (labelFileWatcher != null) {
+                        labelFileWatcher.registered(swarmClient.getName());
+                    }
+                }
 
                 /*
-                 * Set up the label file watcher thread. If the label file changes, this thread
-                 * takes action to restart the client. Note that this must be done after we create
-                 * the Swarm agent, since only then has the server returned the name we must use
-                 * when doing label operations.
+                 * Set up the label file watcher thread. If the labels from the label sources
+                 * change, this thread takes action to update them. Note that this must be done
+                 * after we create the Swarm agent, or restored its registration, since only then
+                 * do we know the name we must use when doing label operations.
                  */
-                if (options.labelsFile != null) {
+                if (labelFileWatcher == null && !swarmClient.getLabelSources().isEmpty()) {
                     logger.info("Setting up LabelFileWatcher");
-                    LabelFileWatcher l = new LabelFileWatcher(url, options, swarmClient.getName(), args);
-                    Thread labelFileWatcherThread = new Thread(l, "LabelFileWatcher");
+                    labelFileWatcher = new LabelFileWatcher(swarmClient, options);
+                    Thread labelFileWatcherThread = new Thread(labelFileWatcher, "LabelFileWatcher");
                     labelFileWatcherThread.setDaemon(true);
                     labelFileWatcherThread.start();
                 }
@@ -217,21 +302,55 @@ public class Client {
                  * Note that any instances of InterruptedException or RuntimeException thrown
                  * internally by the next line get wrapped in RetryException.
                  */
+                phase = "connection";
+                SwarmMetrics.connectAttempt();
                 swarmClient.connect(url);
-                if (options.noRetryAfterConnected) {
+                if (options.noRetryAfterConnected && !swarmClient.isReconnectRequested()) {
                     logger.warning("Connection closed, exiting...");
-                    swarmClient.exitWithStatus(0);
+                    return 0;
                 }
             } catch (IOException | InterruptedException | RetryException e) {
-                logger.log(Level.SEVERE, "An error occurred", e);
+                logger.log(reconnecting ? Level.WARNING : Level.SEVERE, "An error occurred", e);
+                SwarmMetrics.failure(phase, e);
+                retryAfter = e instanceof RetryException ? ((RetryException) e).getRetryAfter() : null;
             }
 
-            int waitTime =
-                    options.retryBackOffStrategy.waitForRetry(retry++, options.retryInterval, options.maxRetryInterval);
+            // The node is gone or no longer accepts the secret, so register without waiting.
+            if (reconnecting && !swarmClient.canReconnectWithoutRegistration() && !swarmClient.isReconnectRequested()) {
+                logger.info("Failed to reconnect without registering, registering again");
+                continue;
+            }
+
+            // The labels changed in a way that requires registering the agent again.
+            if (swarmClient.takeReconnectRequest()) {
+                logger.info("Registering again to apply changed labels");
+                retry = 0;
+                waitTime = 0;
+                continue;
+            }
+
+            // A connection that stayed up for a while starts over with a fresh retry budget.
+            long uptimeNanos = swarmClient.takeLastUptimeNanos();
+            if (options.retryResetInterval > 0
+                    && uptimeNanos >= TimeUnit.SECONDS.toNanos(options.retryResetInterval)
+                    && retry > 0) {
+                logger.info("Connection was up for " + TimeUnit.NANOSECONDS.toSeconds(uptimeNanos)
+                        + " seconds, resetting the retry count");
+                retry = 0;
+                waitTime = 0;
+            }
+
+            waitTime = options.retryBackOffStrategy.waitForRetry(
+                    retry++, options.retryInterval, options.maxRetryInterval, waitTime);
+            if (retryAfter != null) {
+                // The controller paces the whole fleet while it is overloaded, so follow it instead.
+                waitTime = (int) Math.min(MAX_RETRY_AFTER_SECONDS, Math.max(1, retryAfter.getSeconds()));
+                logger.info("The controller asked to retry after " + retryAfter.getSeconds() + " seconds");
+            }
             if (options.retry >= 0) {
                 if (retry >= options.retry) {
                     logger.severe("Retry limit reached, exiting...");
-                    swarmClient.exitWithStatus(1);
+                    return 1;
                 } else {
                     logger.warning("Remaining retries: " + (options.retry - retry));
                 }
@@ -239,6 +358,7 @@ public class Client {
 
             // retry
             logger.info("Retrying in " + waitTime + " seconds");
+            SwarmMetrics.retry(waitTime);
             swarmClient.sleepSeconds(waitTime);
         }
     }
@@ -0,0 +1,79 @@
+package hudson.plugins.swarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the unique ID of the client in {@code <fsroot>/.swarm/identity.properties}, so that it is
+ * computed once rather than on every start, and stays the same while network interfaces come and
+ * go.
+ *
+ * <p>The persisted ID is computed again when the file is missing or malformed, when it was written
+ * for another {@code -fsroot} (because the directory was moved or copied), or when asked to.
+ */
+final class ClientIdentity {
+
+    private static final Logger logger = Logger.getLogger(ClientIdentity.class.getName());
+
+    static final String FILE = "identity.properties";
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{8}");
+
+    private ClientIdentity() {}
+
+    /**
+     * @param fsroot the remote root directory of the agent
+     * @param regenerate whether to replace a persisted ID even if it is still valid
+     * @param generator computes a new ID
+     * @return the persisted ID, or a new one
+     */
+    static String load(File fsroot, boolean regenerate, Supplier<String> generator) {
+        Path file = StateFiles.resolve(fsroot, FILE);
+        String root = canonicalPath(fsroot);
+        if (!regenerate && Files.isRegularFile(file)) {
+            Properties properties = new Properties();
+            try (InputStream is = Files.newInputStream(file)) {
+                properties.load(is);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read " + file + ", computing the client ID again", e);
+            }
+            String hash = properties.getProperty("hash");
+            if (hash == null || !HASH.matcher(hash).matches()) {
+                logger.info(file + " does not contain a valid client ID, computing it again");
+            } else if (!root.equals(properties.getProperty("fsroot"))) {
+                logger.info(file + " was written for " + properties.getProperty("fsroot")
+                        + ", computing the client ID again");
+            } else {
+                logger.config("Using the client ID from " + file);
+                return hash;
+            }
+        }
+
+        String hash = generator.get();
+        Properties properties = new Properties();
+        properties.setProperty("hash", hash);
+        properties.setProperty("fsroot", root);
+        try {
+            StateFiles.store(file, properties, "Unique ID of the Swarm client; delete this file to compute it again");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to persist the client ID to " + file, e);
+        }
+        return hash;
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package hudson.plugins.swarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The registration of the agent, kept in {@code <fsroot>/.swarm/state.properties} so that a
+ * restarted client can connect with it right away instead of registering again.
+ *
+ * <p>The file records a fingerprint of the options that the registration was made with, and is
+ * ignored once they change. Because it holds the secret of the agent, it is only readable by its
+ * owner where the file system supports that.
+ */
+final class ClientState {
+
+    private static final Logger logger = Logger.getLogger(ClientState.class.getName());
+
+    static final String FILE = "state.properties";
+
+    final String name;
+    final String secret;
+
+    /** The TCP agent listener as {@code host:port}, or {@code null} if Jenkins did not give it. */
+    final String directConnection;
+
+    final String instanceIdentity;
+    final List<String> protocols;
+
+    ClientState(
+            String name, String secret, String directConnection, String instanceIdentity, List<String> protocols) {
+        this.name = name;
+        this.secret = secret;
+        this.directConnection = directConnection;
+        this.instanceIdentity = instanceIdentity;
+        this.protocols = protocols;
+    }
+
+    /**
+     * Returns a fingerprint of the options that the registration depends on, including the labels
+     * found by the label sources, and of the host, so that a copy of {@code -fsroot} on another host
+     * does not take over the agent.
+     *
+     * @param clientId the unique ID of the client, which may be empty
+     */
+    static String fingerprint(Options options, String clientId) {
+        Map<String, String> values = new TreeMap<>();
+        values.put("clientId", clientId);
+        values.put("host", hostName());
+        values.put("url", options.url);
+        values.put("name", options.name);
+        values.put("description", options.description);
+        values.put("executors", Integer.toString(options.executors));
+        values.put("fsroot", options.fsroot.getAbsolutePath());
+        values.put("labels", String.join(" ", new TreeSet<>(options.labels)));
+        values.put("mode", options.mode);
+        values.put("toolLocations", String.valueOf(sorted(options.toolLocations)));
+        values.put("environmentVariables", String.valueOf(sorted(options.environmentVariables)));
+        values.put("disableClientsUniqueId", Boolean.toString(options.disableClientsUniqueId));
+        values.put("persistClientId", Boolean.toString(options.persistClientId));
+        values.put("keepDisconnectedClients", Boolean.toString(options.keepDisconnectedClients));
+        values.put("username", options.username);
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return HexFormat.of().formatHex(md.digest(values.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "";
+        }
+    }
+
+    private static Map<String, String> sorted(Map<String, String> map) {
+        return map == null ? null : new TreeMap<>(map);
+    }
+
+    /** Returns the state recorded for these options, or {@code null} if there is none. */
+    static ClientState load(File fsroot, String fingerprint) {
+        Path file = file(fsroot);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file + ", registering again", e);
+            return null;
+        }
+        if (!fingerprint.equals(properties.getProperty("fingerprint"))) {
+            logger.info("The options changed since " + file + " was written, registering again");
+            return null;
+        }
+        String name = properties.getProperty("name");
+        String secret = properties.getProperty("secret");
+        if (name == null || secret == null) {
+            logger.info(file + " does not contain a registration, registering again");
+            return null;
+        }
+        String protocols = properties.getProperty("protocols", "");
+        return new ClientState(
+                name,
+                secret,
+                properties.getProperty("directConnection"),
+                properties.getProperty("instanceIdentity"),
+                protocols.isEmpty() ? null : List.of(protocols.split(",")));
+    }
+
+    void store(File fsroot, String fingerprint) {
+        if (name == null || secret == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("fingerprint", fingerprint);
+        properties.setProperty("name", name);
+        properties.setProperty("secret", secret);
+        if (directConnection != null && instanceIdentity != null) {
+            properties.setProperty("directConnection", directConnection);
+            properties.setProperty("instanceIdentity", instanceIdentity);
+        }
+        if (protocols != null) {
+            properties.setProperty("protocols", String.join(",", protocols));
+        }
+        Path file = file(fsroot);
+        try {
+            StateFiles.store(file, properties, "Registration of the Swarm agent; delete this file to register again");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+
+    private static Path file(File fsroot) {
+        return StateFiles.resolve(fsroot, FILE);
+    }
+}
@@ -0,0 +1,94 @@
+package hudson.plugins.swarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a command, as given by {@code -labelsCommand}, and takes the labels from its standard
+ * output. The command is run again once the refresh interval has passed. If it fails, the labels
+ * of the last successful run are kept.
+ */
+final class CommandLabelSource implements LabelSource {
+
+    private static final Logger logger = Logger.getLogger(CommandLabelSource.class.getName());
+
+    private static final long MIN_TIMEOUT_SECONDS = 10;
+
+    private final String command;
+    private final Duration refreshInterval;
+
+    private Set<String> labels = Set.of();
+    private long lastRun;
+    private boolean hasRun;
+
+    CommandLabelSource(String command, Duration refreshInterval) {
+        this.command = command;
+        this.refreshInterval = refreshInterval;
+    }
+
+    @Override
+    public synchronized Set<String> getLabels() {
+        if (hasRun && System.nanoTime() - lastRun < refreshInterval.toNanos()) {
+            return labels;
+        }
+
+        try {
+            labels = run();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to get labels from " + this + ", keeping the previous labels", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        hasRun = true;
+        lastRun = System.nanoTime();
+        return labels;
+    }
+
+    @Override
+    public Duration getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    private Set<String> run() throws IOException, InterruptedException {
+        List<String> shell = isWindows() ? List.of("cmd", "/c", command) : List.of("sh", "-c", command);
+
+        // The output goes to a file so that a command that hangs with its output open cannot block us.
+        File output = File.createTempFile("swarm-labels", ".txt");
+        try {
+            Process process = new ProcessBuilder(shell)
+                    .redirectInput(ProcessBuilder.Redirect.from(new File(isWindows() ? "NUL" : "/dev/null")))
+                    .redirectOutput(output)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            long timeout = Math.max(refreshInterval.toSeconds(), MIN_TIMEOUT_SECONDS);
+            if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("Timed out after " + timeout + " seconds");
+            }
+            if (process.exitValue() != 0) {
+                throw new IOException("Exited with status " + process.exitValue());
+            }
+            return LabelSource.parseLabels(Files.readString(output.toPath(), Charset.defaultCharset()));
+        } finally {
+            Files.deleteIfExists(output.toPath());
+        }
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase(Locale.ENGLISH).startsWith("windows");
+    }
+
+    @Override
+    public String toString() {
+        return "command " + command;
+    }
+}
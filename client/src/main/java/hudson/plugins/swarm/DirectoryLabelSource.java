@@ -0,0 +1,92 @@
+package hudson.plugins.swarm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reads labels from the files in a directory, as given by {@code -labelsDir}, so that independent
+ * systems can each maintain their own fragment. Hidden files and subdirectories are ignored. A
+ * fragment is only read again when its modification time, size, or identity changed.
+ */
+final class DirectoryLabelSource implements LabelSource {
+
+    private final Path directory;
+    private final Map<Path, Fragment> fragments = new HashMap<>();
+
+    DirectoryLabelSource(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized Set<String> getLabels() throws IOException {
+        Map<Path, Fragment> current = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().startsWith(".") || !Files.isRegularFile(file)) {
+                    continue;
+                }
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    Fragment fragment = fragments.get(file);
+                    if (fragment == null || !fragment.matches(attributes)) {
+                        fragment = new Fragment(
+                                attributes, LabelSource.parseLabels(Files.readString(file, StandardCharsets.UTF_8)));
+                    }
+                    current.put(file, fragment);
+                } catch (NoSuchFileException e) {
+                    // deleted since the directory was listed
+                }
+            }
+        }
+        fragments.clear();
+        fragments.putAll(current);
+
+        Set<String> labels = new LinkedHashSet<>();
+        for (Fragment fragment : current.values()) {
+            labels.addAll(fragment.labels);
+        }
+        return labels;
+    }
+
+    @Override
+    public Path getWatchedDirectory() {
+        return directory.toAbsolutePath();
+    }
+
+    @Override
+    public String toString() {
+        return "directory " + directory;
+    }
+
+    private static final class Fragment {
+        final FileTime lastModified;
+        final long size;
+        final Object fileKey;
+        final Set<String> labels;
+
+        Fragment(BasicFileAttributes attributes, Set<String> labels) {
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.fileKey = attributes.fileKey();
+            this.labels = labels;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return lastModified.equals(attributes.lastModifiedTime())
+                    && size == attributes.size()
+                    && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+}
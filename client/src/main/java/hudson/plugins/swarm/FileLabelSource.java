@@ -0,0 +1,32 @@
+package hudson.plugins.swarm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+/** Reads labels from a single file, as given by {@code -labelsFile}. */
+final class FileLabelSource implements LabelSource {
+
+    private final Path file;
+
+    FileLabelSource(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public Set<String> getLabels() throws IOException {
+        return LabelSource.parseLabels(Files.readString(file, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Path getWatchedDirectory() {
+        return file.toAbsolutePath().getParent();
+    }
+
+    @Override
+    public String toString() {
+        return "file " + file;
+    }
+}
@@ -0,0 +1,53 @@
+package hudson.plugins.swarm;
+
+import io.micrometer.core.instrument.Metrics;
+import java.net.http.HttpResponse;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Records how the shared HTTP client talks to the controller.
+ *
+ * <p>The JDK HTTP client does not expose its connection pool, so connection reuse cannot be
+ * observed. Instead, responses are counted by whether their TLS session is among the most recently
+ * seen ones. A new connection that resumes a known session counts as a known session too, and
+ * responses over plain HTTP are not counted at all.
+ */
+final class HttpClientMetrics {
+
+    private static final int MAX_TRACKED_SESSIONS = 64;
+
+    private static final Set<String> sessions = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_TRACKED_SESSIONS;
+        }
+    });
+
+    private HttpClientMetrics() {}
+
+    static void record(HttpResponse<?> response) {
+        Metrics.counter(
+                        "swarm.http.client.requests",
+                        "version",
+                        response.version().name(),
+                        "status",
+                        Integer.toString(response.statusCode()))
+                .increment();
+
+        SSLSession session = response.sslSession().orElse(null);
+        if (session == null) {
+            return;
+        }
+        String id = Base64.getEncoder().encodeToString(session.getId());
+        boolean added;
+        synchronized (sessions) {
+            added = sessions.add(id);
+        }
+        Metrics.counter("swarm.http.client.tls.sessions", "session", added ? "new" : "known").increment();
+    }
+}
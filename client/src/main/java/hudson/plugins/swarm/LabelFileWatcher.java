@@ -1,23 +1,21 @@
 package hudson.plugins.swarm;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,49 +29,151 @@ public class LabelFileWatcher implements Runnable {
     private static final long LABEL_FILE_WATCHER_INTERVAL_MILLIS = Long.getLong(
             LabelFileWatcher.class.getName() + ".labelFileWatcherIntervalMillis", TimeUnit.SECONDS.toMillis(30));
 
+    /** How long watched files must stay unchanged before they are read after a change. */
+    private static final long LABEL_FILE_WATCHER_DEBOUNCE_MILLIS =
+            Long.getLong(LabelFileWatcher.class.getName() + ".labelFileWatcherDebounceMillis", 100);
+
+    /**
+     * How long to wait at most for changes to settle, so that a file in the same directory that
+     * changes all the time does not hold back label updates.
+     */
+    private static final long LABEL_FILE_WATCHER_MAX_DEBOUNCE_MILLIS =
+            Long.getLong(LabelFileWatcher.class.getName() + ".labelFileWatcherMaxDebounceMillis", 1000);
+
+    private static final boolean LABEL_FILE_WATCHER_POLLING =
+            Boolean.getBoolean(LabelFileWatcher.class.getName() + ".labelFileWatcherPolling");
+
     private boolean isRunning = false;
     private final Options options;
-    private final String name;
-    private String labels;
-    private final String[] args;
+    private String name;
+    private final List<LabelSource> sources;
+    /** The labels given with {@code -labels}, which a new registration keeps. */
+    private final List<String> cliLabels;
+    /** The labels of all sources, as last sent to the controller. */
+    private Set<String> labels;
+    /** The labels the controller last reported for the agent, or {@code null} if they are not known. */
+    private Set<String> acknowledgedLabels;
+    /** Whether the controller predates {@code setSlaveLabels} and does not update labels atomically. */
+    private boolean legacyController;
+    private final SwarmClient swarmClient;
     private final URL url;
 
-    public LabelFileWatcher(URL url, Options options, String name, String... args) throws IOException {
-        logger.config("LabelFileWatcher() constructed with: " + options.labelsFile + " and " + String.join(", ", args));
-        this.url = url;
+    public LabelFileWatcher(SwarmClient swarmClient, Options options) throws IOException {
+        this.swarmClient = swarmClient;
+        this.url = swarmClient.getUrl();
         this.options = options;
-        this.name = name;
-        this.labels = Files.readString(Paths.get(options.labelsFile), StandardCharsets.UTF_8);
-        this.args = args;
+        this.sources = swarmClient.getLabelSources();
+        this.cliLabels = swarmClient.getCliLabels();
+        this.name = swarmClient.getName();
+        logger.config("LabelFileWatcher() constructed with: " + sources);
+        this.labels = getLabels();
         logger.config("Labels loaded: " + labels);
     }
 
-    private void softLabelUpdate(String sNewLabels) throws SoftLabelUpdateException {
-        // 1. get labels from controller
-        // 2. issue remove command for all old labels
-        // 3. issue update commands for new labels
-        logger.log(
-                Level.CONFIG,
-                "NOTICE: " + options.labelsFile + " has changed.  Attempting soft label update (no node restart)");
+    /** Merges the labels of all sources. */
+    private Set<String> getLabels() throws IOException {
+        Set<String> result = new LinkedHashSet<>();
+        for (LabelSource source : sources) {
+            result.addAll(source.getLabels());
+        }
+        return result;
+    }
+
+    /**
+     * Called after the agent has been registered again. The controller may have created the agent
+     * anew, so the labels it knows are no longer taken for granted.
+     */
+    synchronized void registered(String name) {
+        this.name = name;
+        acknowledgedLabels = null;
+    }
+
+    /**
+     * Brings the labels on the controller in line with the labels given on the command line and
+     * those of the label sources, like {@link #hardLabelUpdate}. The labels are replaced in a single
+     * request, so that the agent never matches only part of them, and nothing is sent when the
+     * labels the controller has are known to be the desired ones. Controllers that cannot replace
+     * labels get the labels that were added and then those that were removed.
+     */
+    private synchronized void softLabelUpdate(Set<String> newLabels) throws SoftLabelUpdateException {
+        logger.log(Level.CONFIG, "NOTICE: Labels have changed.  Attempting soft label update (no node restart)");
+
+        Set<String> agentLabels = new LinkedHashSet<>(cliLabels);
+        agentLabels.addAll(newLabels);
+        Set<String> desiredLabels = new LinkedHashSet<>();
+        desiredLabels.add("swarm");
+        desiredLabels.addAll(agentLabels);
+        if (desiredLabels.equals(acknowledgedLabels)) {
+            logger.log(Level.CONFIG, "Labels have not changed");
+            return;
+        }
+
+        HttpClient client = SwarmClient.getHttpClient(options);
+        if (!legacyController) {
+            String labelStr;
+            try {
+                labelStr = SwarmClient.postLabelSet(name, String.join(" ", agentLabels), client, options, url);
+            } catch (IOException | InterruptedException | RetryException e) {
+                acknowledgedLabels = null;
+                String msg = "Exception when setting labels on " + url;
+                logger.log(Level.SEVERE, msg, e);
+                throw new SoftLabelUpdateException(msg);
+            }
+            if (labelStr != null) {
+                acknowledgedLabels = LabelSource.parseLabels(labelStr);
+                return;
+            }
+            logger.log(Level.CONFIG, "Controller does not support setting labels, adding and removing them instead");
+            legacyController = true;
+        }
+        if (acknowledgedLabels == null) {
+            acknowledgedLabels = LabelSource.parseLabels(getControllerLabels(client));
+        }
+
+        Set<String> labelsToRemove = new LinkedHashSet<>(acknowledgedLabels);
+        labelsToRemove.removeAll(desiredLabels);
+        Set<String> labelsToAdd = new LinkedHashSet<>(desiredLabels);
+        labelsToAdd.removeAll(acknowledgedLabels);
+        if (labelsToRemove.isEmpty() && labelsToAdd.isEmpty()) {
+            logger.log(Level.CONFIG, "Labels have not changed");
+            return;
+        }
+        logger.log(Level.CONFIG, "Labels to be removed: " + labelsToRemove);
+        logger.log(Level.CONFIG, "Labels to be added: " + labelsToAdd);
+
+        // such controllers lose concurrent updates of the same agent, so send one request at a time,
+        // and add before removing so that the agent keeps matching while a label is replaced
+        try {
+            SwarmClient.postLabelAppend(name, String.join(" ", labelsToAdd), client, options, url);
+            SwarmClient.postLabelRemove(name, String.join(" ", labelsToRemove), client, options, url);
+        } catch (IOException | InterruptedException | RetryException e) {
+            // some of the updates may have been applied
+            acknowledgedLabels = null;
+            String msg = "Exception when updating labels on " + url;
+            logger.log(Level.SEVERE, msg, e);
+            throw new SoftLabelUpdateException(msg);
+        }
+        acknowledgedLabels = desiredLabels;
+    }
 
+    private String getControllerLabels(HttpClient client) throws SoftLabelUpdateException {
         logger.log(Level.CONFIG, "Getting current labels from controller");
 
         Document xml;
 
-        HttpClient client = SwarmClient.createHttpClient(options);
         HttpRequest.Builder builder = HttpRequest.newBuilder(
-                        URI.create(url + "plugin/swarm/getSlaveLabels?name=" + name))
+                        URI.create(url + "plugin/swarm/getSlaveLabels?name=" + SwarmClient.encode(name)))
                 .GET();
         SwarmClient.addAuthorizationHeader(builder, options);
         HttpRequest request = builder.build();
         try {
             HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            HttpClientMetrics.record(response);
             if (response.statusCode() != HttpURLConnection.HTTP_OK) {
                 logger.log(
                         Level.CONFIG,
                         "Failed to retrieve labels from controller -- Response code: " + response.statusCode());
-                throw new SoftLabelUpdateException(
-                        "Unable to acquire labels from controller to begin removal process.");
+                throw new SoftLabelUpdateException("Unable to acquire labels from controller.");
             }
             try {
                 xml = XmlUtils.parse(response.body());
@@ -88,110 +188,107 @@ public class LabelFileWatcher implements Runnable {
             throw new SoftLabelUpdateException(msg);
         }
 
-        String labelStr = SwarmClient.getChildElementString(xml.getDocumentElement(), "labels");
-        labelStr = labelStr.replace("swarm", "");
+        return SwarmClient.getChildElementString(xml.getDocumentElement(), "labels");
+    }
 
-        logger.log(Level.CONFIG, "Labels to be removed: " + labelStr);
+    /**
+     * Registers the agent again with the labels given on the command line and the new labels of the
+     * sources, for when the controller could not update them in place. The connection is torn down
+     * and re-established within this JVM.
+     */
+    private synchronized void hardLabelUpdate(Set<String> newLabels) {
+        logger.config("NOTICE: Labels have changed.  Registering the agent again with the new labels.");
+        options.labels.clear();
+        options.labels.addAll(cliLabels);
+        options.labels.addAll(newLabels);
+        acknowledgedLabels = null;
+        swarmClient.reconnect();
+    }
 
-        // remove the labels in 1000 char blocks
-        List<String> lLabels = List.of(labelStr.split("\\s+"));
-        StringBuilder sb = new StringBuilder();
-        for (String s : lLabels) {
-            sb.append(s);
-            sb.append(" ");
-            if (sb.length() > 1000) {
-                try {
-                    SwarmClient.postLabelRemove(name, sb.toString(), client, options, url);
-                } catch (IOException | InterruptedException | RetryException e) {
-                    String msg = "Exception when removing label from " + url;
-                    logger.log(Level.SEVERE, msg, e);
-                    throw new SoftLabelUpdateException(msg);
-                }
-                sb = new StringBuilder();
-            }
+    /**
+     * Watches the directories of file-based label sources for changes. Events for other files in a
+     * directory are not filtered out, because tools like Kubernetes replace mounted files by
+     * swapping a symbolic link to a sibling directory.
+     *
+     * @return {@code null} if no source is backed by files or the file system does not support
+     *     watching
+     */
+    private WatchService createWatchService() {
+        if (LABEL_FILE_WATCHER_POLLING) {
+            return null;
         }
-        if (sb.length() > 0) {
-            try {
-                SwarmClient.postLabelRemove(name, sb.toString(), client, options, url);
-            } catch (IOException | InterruptedException | RetryException e) {
-                String msg = "Exception when removing label from " + url;
-                logger.log(Level.SEVERE, msg, e);
-                throw new SoftLabelUpdateException(msg);
+        Set<Path> directories = new LinkedHashSet<>();
+        for (LabelSource source : sources) {
+            if (source.getWatchedDirectory() != null) {
+                directories.add(source.getWatchedDirectory());
             }
         }
+        if (directories.isEmpty()) {
+            return null;
+        }
 
-        // now add the labels back on
-        logger.log(Level.CONFIG, "Labels to be added: " + sNewLabels);
-        lLabels = List.of(sNewLabels.split("\\s+"));
-        sb = new StringBuilder();
-        for (String s : lLabels) {
-            sb.append(s);
-            sb.append(" ");
-            if (sb.length() > 1000) {
+        WatchService watchService = null;
+        try {
+            watchService = directories.iterator().next().getFileSystem().newWatchService();
+            for (Path directory : directories) {
+                directory.register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            return watchService;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.log(Level.CONFIG, "Unable to watch " + directories + ", polling them instead", e);
+            if (watchService != null) {
                 try {
-                    SwarmClient.postLabelAppend(name, sb.toString(), client, options, url);
-                } catch (IOException | InterruptedException | RetryException e) {
-                    String msg = "Exception when appending label to " + url;
-                    logger.log(Level.SEVERE, msg, e);
-                    throw new SoftLabelUpdateException(msg);
+                    watchService.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
                 }
-                sb = new StringBuilder();
             }
+            return null;
         }
+    }
 
-        if (sb.length() > 0) {
-            try {
-                SwarmClient.postLabelAppend(name, sb.toString(), client, options, url);
-            } catch (IOException | InterruptedException | RetryException e) {
-                String msg = "Exception when appending label to " + url;
-                logger.log(Level.SEVERE, msg, e);
-                throw new SoftLabelUpdateException(msg);
+    /**
+     * How long to wait for changes before looking at the label sources again: the polling interval
+     * for files, or the shortest refresh interval of the other sources.
+     */
+    private long getIntervalMillis() {
+        long interval = LABEL_FILE_WATCHER_INTERVAL_MILLIS;
+        for (LabelSource source : sources) {
+            if (source.getRefreshInterval() != null) {
+                interval = Math.min(interval, source.getRefreshInterval().toMillis());
             }
         }
+        return interval;
     }
 
-    private void hardLabelUpdate() throws IOException {
-        logger.config("NOTICE: " + options.labelsFile + " has changed.  Hard node restart attempt initiated.");
-        isRunning = false;
-        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
-        try {
-            File currentJar = new File(LabelFileWatcher.class
-                    .getProtectionDomain()
-                    .getCodeSource()
-                    .getLocation()
-                    .toURI());
-            if (!currentJar.getName().endsWith(".jar")) {
-                throw new URISyntaxException(currentJar.getName(), "Doesn't end in .jar");
-            } else {
-                // invoke the restart
-                ArrayList<String> command = new ArrayList<>();
-                command.add(javaBin);
-                if (System.getProperty("java.util.logging.config.file") == null) {
-                    logger.warning("NOTE:  You do not have a -Djava.util.logging.config.file specified,"
-                            + " but your labels file has changed.  You will lose logging for"
-                            + " the new client instance. Although the client will continue to"
-                            + " work, you will have no logging.");
-                } else {
-                    command.add(
-                            "-Djava.util.logging.config.file=" + System.getProperty("java.util.logging.config.file"));
-                }
-                command.add("-jar");
-                command.add(currentJar.getPath());
-                Collections.addAll(command, args);
-                String sCommandString = Arrays.toString(command.toArray());
-                sCommandString =
-                        sCommandString.replaceAll("\n", "").replaceAll("\r", "").replaceAll(",", "");
-                logger.config("Invoking: " + sCommandString);
-                ProcessBuilder builder = new ProcessBuilder(command);
-                builder.start();
-                logger.config("New node instance started, ignore subsequent warning.");
+    /**
+     * Waits until the labels may have changed. When watching, this returns once changes have
+     * settled for the debounce period, but no later than the maximum debounce period after the
+     * first change, or after the interval as a safety net for changes the file system does not
+     * report, such as those made on another host of a network file system.
+     */
+    static void waitForChange(WatchService watchService, long intervalMillis, long maxDebounceMillis)
+            throws InterruptedException {
+        if (watchService == null) {
+            logger.log(Level.FINE, String.format("LabelFileWatcher sleeping %d milliseconds", intervalMillis));
+            Thread.sleep(intervalMillis);
+            return;
+        }
+
+        WatchKey key = watchService.poll(intervalMillis, TimeUnit.MILLISECONDS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(maxDebounceMillis, intervalMillis));
+        while (key != null) {
+            key.pollEvents();
+            key.reset();
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return;
             }
-        } catch (URISyntaxException e) {
-            logger.log(
-                    Level.SEVERE,
-                    "ERROR: LabelFileWatcher unable to determine current running jar. Node"
-                            + " failure. URISyntaxException.",
-                    e);
+            key = watchService.poll(Math.min(LABEL_FILE_WATCHER_DEBOUNCE_MILLIS, remaining), TimeUnit.MILLISECONDS);
         }
     }
 
@@ -199,48 +296,48 @@ public class LabelFileWatcher implements Runnable {
     @SuppressFBWarnings(value = "DM_EXIT", justification = "behavior is intentional")
     @SuppressWarnings("lgtm[jenkins/unsafe-calls]")
     public void run() {
-        String sTempLabels;
+        Set<String> newLabels;
         isRunning = true;
 
-        logger.config("LabelFileWatcher running, monitoring file: " + options.labelsFile);
+        logger.config("LabelFileWatcher running, monitoring " + sources);
 
+        WatchService watchService = createWatchService();
+        long intervalMillis = getIntervalMillis();
         while (isRunning) {
             try {
-                logger.log(
-                        Level.FINE,
-                        String.format("LabelFileWatcher sleeping %d milliseconds", LABEL_FILE_WATCHER_INTERVAL_MILLIS));
-                Thread.sleep(LABEL_FILE_WATCHER_INTERVAL_MILLIS);
+                waitForChange(watchService, intervalMillis, LABEL_FILE_WATCHER_MAX_DEBOUNCE_MILLIS);
             } catch (InterruptedException e) {
                 logger.log(Level.WARNING, "LabelFileWatcher InterruptedException occurred.", e);
             }
             try {
-                sTempLabels = Files.readString(Paths.get(options.labelsFile), StandardCharsets.UTF_8);
-                if (sTempLabels.equalsIgnoreCase(labels)) {
-                    logger.log(Level.FINEST, "Nothing to do. " + options.labelsFile + " has not changed.");
+                newLabels = getLabels();
+                if (newLabels.equals(labels)) {
+                    logger.log(Level.FINEST, "Nothing to do. Labels have not changed.");
                 } else {
                     try {
                         // try to do the "soft" form of label updating (manipulating the labels
                         // through the plugin APIs
-                        softLabelUpdate(sTempLabels);
-                        labels = Files.readString(Paths.get(options.labelsFile), StandardCharsets.UTF_8);
+                        softLabelUpdate(newLabels);
+                        labels = newLabels;
+                        SwarmMetrics.labelUpdate("soft");
                     } catch (SoftLabelUpdateException e) {
                         // if we're unable to
                         logger.log(
                                 Level.WARNING,
                                 "WARNING: Normal process, soft label update failed. "
                                         + e.getLocalizedMessage()
-                                        + ", forcing Swarm client restart. This can be disruptive"
+                                        + ", reconnecting the agent. This can be disruptive"
                                         + " to Jenkins jobs. Check your Swarm client log files to"
                                         + " see why this is happening.");
-                        hardLabelUpdate();
+                        hardLabelUpdate(newLabels);
+                        labels = newLabels;
+                        SwarmMetrics.labelUpdate("hard");
                     }
                 }
             } catch (IOException e) {
                 logger.log(
                         Level.WARNING,
-                        "WARNING: unable to read "
-                                + options.labelsFile
-                                + ", node may not be reporting proper labels to controller.",
+                        "WARNING: unable to read labels, node may not be reporting proper labels to controller.",
                         e);
             }
         }
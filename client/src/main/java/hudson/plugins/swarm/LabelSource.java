@@ -0,0 +1,69 @@
+package hudson.plugins.swarm;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Provides labels for the agent that may change while the client is running.
+ *
+ * <p>Sources cache their labels and only do the work needed to find out whether they changed, so
+ * {@link #getLabels()} may be called often.
+ */
+interface LabelSource {
+
+    /** Returns the current labels of this source. */
+    Set<String> getLabels() throws IOException;
+
+    /**
+     * The directory in which changes may change the labels of this source, or {@code null} if the
+     * source is not backed by files.
+     */
+    default Path getWatchedDirectory() {
+        return null;
+    }
+
+    /** How often the labels should be looked at, or {@code null} if only changes to files matter. */
+    default Duration getRefreshInterval() {
+        return null;
+    }
+
+    /** Creates the label sources configured by the options. */
+    static List<LabelSource> fromOptions(Options options) {
+        List<LabelSource> sources = new ArrayList<>();
+        Duration refreshInterval = Duration.ofSeconds(Math.max(1, options.labelsRefreshInterval));
+        if (options.labelsFile != null) {
+            sources.add(new FileLabelSource(Paths.get(options.labelsFile)));
+        }
+        if (options.labelsDir != null) {
+            sources.add(new DirectoryLabelSource(Paths.get(options.labelsDir)));
+        }
+        if (options.labelsCommand != null) {
+            sources.add(new CommandLabelSource(options.labelsCommand, refreshInterval));
+        }
+        if (options.labelsUrl != null) {
+            sources.add(new UrlLabelSource(URI.create(options.labelsUrl), refreshInterval));
+        }
+        if (options.capabilityProbes != null) {
+            sources.add(new ProbeLabelSource(options, refreshInterval));
+        }
+        return sources;
+    }
+
+    /** Splits a whitespace-separated list of labels. */
+    static Set<String> parseLabels(String labels) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String label : labels.split("\\s+")) {
+            if (!label.isEmpty()) {
+                result.add(label);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,35 @@
+package hudson.plugins.swarm;
+
+import hudson.remoting.Channel;
+import hudson.remoting.FileSystemJarCache;
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A JAR cache that reports the channel it resolves JAR files for as established, and starts
+ * recording {@link ChannelMetrics} for it. The engine does not expose its channel, but over TCP and
+ * WebSocket alike the controller sets up the agent right after connecting, which loads classes
+ * through this cache, so this is the first place the channel is seen.
+ *
+ * <p>A session that never resolves a JAR file through this cache, for example because the
+ * controller does not prefetch JAR files, has no channel metrics. It still counts as connected
+ * when the engine reports so, see {@link SwarmEngineListener}.
+ */
+class MeteredJarCache extends FileSystemJarCache {
+
+    private final SwarmEngineListener listener;
+
+    MeteredJarCache(File rootDir, SwarmEngineListener listener) {
+        super(rootDir, true);
+        this.listener = listener;
+        ChannelMetrics.register();
+    }
+
+    @Override
+    public CompletableFuture<URL> resolve(Channel channel, long sum1, long sum2) {
+        listener.channelEstablished();
+        ChannelMetrics.attach(channel);
+        return super.resolve(channel, sum1, sum2);
+    }
+}
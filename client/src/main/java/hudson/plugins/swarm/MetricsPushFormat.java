@@ -0,0 +1,10 @@
+package hudson.plugins.swarm;
+
+/** The protocol used to push metrics to {@code -metricsPushUrl}. */
+public enum MetricsPushFormat {
+    /** OTLP/HTTP, as accepted by an OpenTelemetry collector. */
+    OTLP,
+
+    /** The text format of Prometheus, as accepted by a Pushgateway. */
+    PUSHGATEWAY
+}
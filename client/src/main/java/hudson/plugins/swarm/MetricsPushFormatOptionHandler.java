@@ -0,0 +1,19 @@
+package hudson.plugins.swarm;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.OptionDef;
+import org.kohsuke.args4j.spi.EnumOptionHandler;
+import org.kohsuke.args4j.spi.Setter;
+
+public class MetricsPushFormatOptionHandler extends EnumOptionHandler<MetricsPushFormat> {
+
+    public MetricsPushFormatOptionHandler(
+            CmdLineParser parser, OptionDef option, Setter<? super MetricsPushFormat> setter) {
+        super(parser, option, setter, MetricsPushFormat.class);
+    }
+
+    @Override
+    public String getDefaultMetaVariable() {
+        return "METRICS_PUSH_FORMAT";
+    }
+}
@@ -0,0 +1,166 @@
+package hudson.plugins.swarm;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import io.micrometer.registry.otlp.OtlpConfig;
+import io.micrometer.registry.otlp.OtlpMeterRegistry;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the metrics of the client to {@code -metricsPushUrl}, for agents that cannot be scraped
+ * because they are behind NAT or do not live long enough.
+ *
+ * <p>Every push carries the cumulative values of all meters, so a push that fails is not kept:
+ * the next successful push brings the collector up to date, and nothing piles up in memory while
+ * the collector is down.
+ */
+abstract class MetricsPusher {
+
+    private static final Logger logger = Logger.getLogger(MetricsPusher.class.getName());
+
+    /** Creates a pusher for the configured format. Its registry must be bound before it is started. */
+    static MetricsPusher create(Options options) {
+        Duration interval = Duration.ofSeconds(Math.max(1, options.metricsPushInterval));
+        switch (options.metricsPushFormat) {
+            case OTLP:
+                return new Otlp(options.metricsPushUrl, interval, options.name);
+            case PUSHGATEWAY:
+                return new Pushgateway(options.metricsPushUrl, interval, options.name);
+            default:
+                throw new IllegalArgumentException("Unknown metrics push format: " + options.metricsPushFormat);
+        }
+    }
+
+    abstract MeterRegistry getRegistry();
+
+    abstract void start();
+
+    /** Pushes the metrics one last time and stops pushing. */
+    abstract void stop();
+
+    /** Pushes to an OpenTelemetry collector, batching meters into requests of a bounded size. */
+    static final class Otlp extends MetricsPusher {
+
+        private final OtlpMeterRegistry registry;
+
+        Otlp(String url, Duration interval, String instance) {
+            OtlpConfig config = key -> {
+                switch (key) {
+                    case "otlp.url":
+                        return url;
+                    case "otlp.step":
+                        return interval.toString();
+                    case "otlp.resourceAttributes":
+                        return "service.name=swarm-client,service.instance.id=" + instance;
+                    default:
+                        return null;
+                }
+            };
+            // The registry publishes on its own schedule, in batches of a bounded number of meters.
+            this.registry = new OtlpMeterRegistry(config, Clock.SYSTEM);
+        }
+
+        @Override
+        MeterRegistry getRegistry() {
+            return registry;
+        }
+
+        @Override
+        void start() {}
+
+        @Override
+        void stop() {
+            registry.close();
+        }
+    }
+
+    /**
+     * Replaces the metrics of this agent on a Pushgateway, grouped by the job {@code swarm} and the
+     * instance name of the agent.
+     */
+    static final class Pushgateway extends MetricsPusher {
+
+        private final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        private final URI uri;
+        private final Duration interval;
+        private final HttpClient client;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Metrics push");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /** Whether the last push failed, so that an outage is only logged once. */
+        private boolean failing;
+
+        Pushgateway(String url, Duration interval, String instance) {
+            this.uri = groupingUri(url, instance);
+            this.interval = interval;
+            this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        }
+
+        static URI groupingUri(String url, String instance) {
+            if (url.contains("/metrics/job/")) {
+                return URI.create(url);
+            }
+            String base = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+            return URI.create(
+                    base + "/metrics/job/swarm/instance/" + URLEncoder.encode(instance, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        MeterRegistry getRegistry() {
+            return registry;
+        }
+
+        @Override
+        void start() {
+            scheduler.scheduleWithFixedDelay(
+                    this::push, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        void stop() {
+            scheduler.shutdownNow();
+            push();
+        }
+
+        synchronized void push() {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(interval)
+                    .header("Content-Type", PrometheusServer.TEXT_CONTENT_TYPE)
+                    .PUT(HttpRequest.BodyPublishers.ofString(
+                            registry.scrape(PrometheusServer.TEXT_CONTENT_TYPE), StandardCharsets.UTF_8))
+                    .build();
+            try {
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() / 100 != 2) {
+                    throw new IOException("Unexpected response code: " + response.statusCode());
+                }
+                if (failing) {
+                    logger.info("Pushing metrics to " + uri + " works again");
+                    failing = false;
+                }
+            } catch (IOException e) {
+                logger.log(failing ? Level.FINE : Level.WARNING, "Failed to push metrics to " + uri, e);
+                failing = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -70,7 +70,10 @@ public class Options {
             usage = "The mode controlling retry wait time. Can be either 'none' (use same interval"
                     + " between retries) or 'linear' (increase wait time before each retry up"
                     + " to maxRetryInterval) or 'exponential' (double wait interval on each"
-                    + " retry up to maxRetryInterval). Default is 'none'.",
+                    + " retry up to maxRetryInterval) or 'full_jitter' (wait a random time up to"
+                    + " what 'exponential' would wait) or 'decorrelated_jitter' (wait a random time"
+                    + " between retryInterval and three times the previous wait, up to"
+                    + " maxRetryInterval). Default is 'none'.",
             handler = RetryBackOffStrategyOptionHandler.class)
     public RetryBackOffStrategy retryBackOffStrategy = RetryBackOffStrategy.NONE;
 
@@ -80,6 +83,12 @@ public class Options {
     @Option(name = "-maxRetryInterval", usage = "Max time to wait before retry in seconds. Default is 60 seconds.")
     public int maxRetryInterval = 60;
 
+    @Option(
+            name = "-retryResetInterval",
+            usage = "Time in seconds a connection must stay up before the retry count and wait time are reset."
+                    + " 0 never resets them. Default is 300 seconds.")
+    public int retryResetInterval = 300;
+
     @Option(name = "-disableSslVerification", usage = "Disable SSL verification in the HTTP client.")
     public boolean disableSslVerification;
 
@@ -94,12 +103,36 @@ public class Options {
     @Option(name = "-disableClientsUniqueId", usage = "Disable client's unique ID.")
     public boolean disableClientsUniqueId;
 
+    @Option(
+            name = "-persistClientId",
+            forbids = "-disableClientsUniqueId",
+            usage = "Compute the client's unique ID once and keep it in .swarm/identity.properties under -fsroot, "
+                    + "instead of computing it from the network interfaces on every start. "
+                    + "The ID is computed again if the file is missing or was written for another -fsroot.")
+    public boolean persistClientId;
+
+    @Option(
+            name = "-persistState",
+            depends = "-keepDisconnectedClients",
+            usage = "Keep the name and secret of the agent and the endpoint of the controller in"
+                    + " .swarm/state.properties under -fsroot, so that a restarted client connects without"
+                    + " registering again. The file is ignored once the options of the registration change,"
+                    + " on another host, or with -regenerateClientId.")
+    public boolean persistState;
+
+    @Option(
+            name = "-regenerateClientId",
+            depends = "-persistClientId",
+            usage = "Compute the persisted unique ID again, for example after copying -fsroot to another host.")
+    public boolean regenerateClientId;
+
     @Option(name = "-deleteExistingClients", usage = "Delete any existing agent with the same name.")
     public boolean deleteExistingClients;
 
     @Option(
             name = "-keepDisconnectedClients",
-            usage = "Do not remove clients from the controller when the agent becomes disconnected.")
+            usage = "Do not remove clients from the controller when the agent becomes disconnected."
+                    + " The agent then reconnects without registering again, unless that fails.")
     public boolean keepDisconnectedClients;
 
     @Option(
@@ -162,10 +195,54 @@ public class Options {
 
     @Option(
             name = "-labelsFile",
-            usage = "File location with space delimited list of labels.  If the file changes, the"
-                    + " client is restarted.")
+            usage = "File location with space delimited list of labels. If the file changes, the"
+                    + " labels are updated.")
     public String labelsFile;
 
+    @Option(
+            name = "-labelsDir",
+            usage = "Directory of files with space delimited lists of labels. If a file in the directory"
+                    + " changes, the labels are updated.")
+    public String labelsDir;
+
+    @Option(
+            name = "-labelsCommand",
+            usage = "Command printing a space delimited list of labels. The command is run again after"
+                    + " -labelsRefreshInterval seconds and the labels are updated.")
+    public String labelsCommand;
+
+    @Option(
+            name = "-labelsUrl",
+            usage = "HTTP URL serving a space delimited list of labels. The URL is fetched again after"
+                    + " -labelsRefreshInterval seconds and the labels are updated.")
+    public String labelsUrl;
+
+    @Option(
+            name = "-labelsRefreshInterval",
+            usage = "Seconds between runs of -labelsCommand, fetches of -labelsUrl, and runs of"
+                    + " -capabilityRefreshProbes.")
+    public int labelsRefreshInterval = 60;
+
+    @Option(
+            name = "-capabilityProbes",
+            usage = "Comma-separated list of host capabilities to add as labels: cores, memory, disk"
+                    + " (free space under -fsroot), fstype.")
+    public String capabilityProbes;
+
+    @Option(
+            name = "-capabilityBucket",
+            usage = "Thresholds for the label of a capability probe, specified as"
+                    + " 'probe=threshold,threshold,...'. The label holds the largest threshold not above"
+                    + " the probed value. Multiple probes are allowed.",
+            handler = MapOptionHandler.class)
+    public Map<String, String> capabilityBuckets;
+
+    @Option(
+            name = "-capabilityRefreshProbes",
+            usage = "Comma-separated list of capability probes to run again after -labelsRefreshInterval"
+                    + " seconds.")
+    public String capabilityRefreshProbes;
+
     @Option(
             name = "-pidFile",
             usage = "File to write PID to. The client will refuse to start if this file exists "
@@ -205,6 +282,32 @@ public class Options {
             usage = "If defined, then start an HTTP service on this port for Prometheus metrics.")
     public int prometheusPort = -1;
 
+    @Option(
+            name = "-metricsPushUrl",
+            usage = "If defined, then push metrics to this URL, such as a local OpenTelemetry collector"
+                    + " or a Prometheus Pushgateway.")
+    public String metricsPushUrl;
+
+    @Option(
+            name = "-metricsPushFormat",
+            usage = "The protocol used to push metrics. Can be either 'otlp' (OTLP/HTTP) or"
+                    + " 'pushgateway' (Prometheus Pushgateway). Default is 'otlp'.",
+            handler = MetricsPushFormatOptionHandler.class,
+            depends = "-metricsPushUrl")
+    public MetricsPushFormat metricsPushFormat = MetricsPushFormat.OTLP;
+
+    @Option(
+            name = "-metricsPushInterval",
+            usage = "Time between pushes of metrics in seconds.",
+            depends = "-metricsPushUrl")
+    public int metricsPushInterval = 60;
+
     @Option(name = "-config", usage = "YAML configuration file containing the options.")
     public File config;
+
+    /**
+     * The agents this process registers and maintains, each with its own name, labels, executors, and
+     * file system root. Only available in the YAML configuration file.
+     */
+    public List<AgentOptions> agents;
 }
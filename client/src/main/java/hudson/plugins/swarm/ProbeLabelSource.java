@@ -0,0 +1,144 @@
+package hudson.plugins.swarm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Describes capabilities of the host as labels, as selected by {@code -capabilityProbes}. All probes
+ * are run in parallel when the labels are first requested and their results are cached. Only the
+ * probes selected by {@code -capabilityRefreshProbes} are run again, once the refresh interval has
+ * passed. If a probe fails, its last result is kept.
+ */
+final class ProbeLabelSource implements LabelSource {
+
+    private static final Logger logger = Logger.getLogger(ProbeLabelSource.class.getName());
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Capability probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Options options;
+    private final Set<CapabilityProbe> probes;
+    private final Set<CapabilityProbe> refreshedProbes;
+    private final Map<CapabilityProbe, long[]> buckets;
+    private final Duration refreshInterval;
+
+    private final Map<CapabilityProbe, String> results = new EnumMap<>(CapabilityProbe.class);
+    private long lastRun;
+    private boolean hasRun;
+
+    ProbeLabelSource(Options options, Duration refreshInterval) {
+        this.options = options;
+        this.probes = parseProbes(options.capabilityProbes);
+        this.refreshedProbes = parseProbes(options.capabilityRefreshProbes);
+        this.refreshedProbes.retainAll(probes);
+        this.buckets = parseBuckets(options.capabilityBuckets);
+        this.refreshInterval = refreshInterval;
+    }
+
+    @Override
+    public synchronized Set<String> getLabels() {
+        if (!hasRun) {
+            run(probes);
+        } else if (!refreshedProbes.isEmpty() && System.nanoTime() - lastRun >= refreshInterval.toNanos()) {
+            run(refreshedProbes);
+        }
+        hasRun = true;
+        lastRun = System.nanoTime();
+
+        Set<String> labels = new LinkedHashSet<>();
+        for (String label : results.values()) {
+            if (label != null) {
+                labels.add(label);
+            }
+        }
+        return labels;
+    }
+
+    @Override
+    public Duration getRefreshInterval() {
+        return refreshedProbes.isEmpty() ? null : refreshInterval;
+    }
+
+    private void run(Set<CapabilityProbe> selected) {
+        Map<CapabilityProbe, CompletableFuture<String>> futures = new EnumMap<>(CapabilityProbe.class);
+        for (CapabilityProbe probe : selected) {
+            futures.put(probe, CompletableFuture.supplyAsync(() -> probe(probe), executor));
+        }
+        for (Map.Entry<CapabilityProbe, CompletableFuture<String>> entry : futures.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().join());
+            } catch (CompletionException e) {
+                String probe = entry.getKey().name().toLowerCase(Locale.ENGLISH);
+                logger.log(Level.WARNING, "Failed to probe " + probe + ", keeping the previous label", e.getCause());
+            }
+        }
+    }
+
+    private String probe(CapabilityProbe probe) {
+        try {
+            return probe.probe(options, buckets.getOrDefault(probe, new long[0]));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Set<CapabilityProbe> parseProbes(String probes) {
+        Set<CapabilityProbe> result = EnumSet.noneOf(CapabilityProbe.class);
+        if (probes != null) {
+            for (String probe : probes.split("[\\s,]+")) {
+                if (!probe.isEmpty()) {
+                    result.add(CapabilityProbe.of(probe));
+                }
+            }
+        }
+        return result;
+    }
+
+    static Map<CapabilityProbe, long[]> parseBuckets(Map<String, String> buckets) {
+        Map<CapabilityProbe, long[]> result = new EnumMap<>(CapabilityProbe.class);
+        if (buckets != null) {
+            for (Map.Entry<String, String> entry : buckets.entrySet()) {
+                CapabilityProbe probe = CapabilityProbe.of(entry.getKey());
+                if (probe == CapabilityProbe.FSTYPE) {
+                    throw new IllegalArgumentException(
+                            "Capability probe " + entry.getKey() + " is not numeric and can not be put into buckets");
+                }
+                try {
+                    long[] thresholds = Arrays.stream(entry.getValue().split(","))
+                            .map(String::trim)
+                            .filter(s -> !s.isEmpty())
+                            .mapToLong(Long::parseLong)
+                            .sorted()
+                            .toArray();
+                    result.put(probe, thresholds);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid thresholds for capability probe " + entry.getKey() + ": " + entry.getValue(), e);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "capability probes " + probes;
+    }
+}
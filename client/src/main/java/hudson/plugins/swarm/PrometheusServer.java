@@ -0,0 +1,175 @@
+package hudson.plugins.swarm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the metrics of a {@link PrometheusMeterRegistry} on {@code /prometheus}.
+ *
+ * <p>Requests are handled concurrently, on virtual threads where the JVM supports them. The result
+ * of a scrape is cached for a short time, so that several scrapers and health checks polling the
+ * endpoint share one scrape, and no request waits for a scrape while an older result exists.
+ * Responses are compressed for clients that accept gzip, and are in the OpenMetrics format for
+ * clients that ask for it.
+ */
+final class PrometheusServer {
+
+    private static final Logger logger = Logger.getLogger(PrometheusServer.class.getName());
+
+    /** How long the result of a scrape is served to other requests. */
+    private static final long SCRAPE_CACHE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong(PrometheusServer.class.getName() + ".scrapeCacheMillis", 1000));
+
+    /** The number of threads serving requests when the JVM does not support virtual threads. */
+    private static final int MAX_THREADS = Integer.getInteger(PrometheusServer.class.getName() + ".maxThreads", 4);
+
+    static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    static final String OPENMETRICS_CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final PrometheusMeterRegistry registry;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final Scrape text = new Scrape(TEXT_CONTENT_TYPE);
+    private final Scrape openMetrics = new Scrape(OPENMETRICS_CONTENT_TYPE);
+
+    PrometheusServer(int port, PrometheusMeterRegistry registry) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = createExecutor();
+        server.setExecutor(executor);
+        server.createContext("/prometheus", this::handle);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            Scrape scrape = accept != null && accept.contains("application/openmetrics-text") ? openMetrics : text;
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+
+            Result result = scrape.get();
+            byte[] body = gzip ? result.gzipped() : result.content;
+            exchange.getResponseHeaders().set("Content-Type", scrape.contentType);
+            if (gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Uses a virtual thread per request on Java 21 and newer. This class is compiled for older
+     * releases, so the factory method is looked up reflectively.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.log(Level.FINE, "Virtual threads are not available, using a thread pool", e);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "Prometheus server");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** The cached scrape in one exposition format. */
+    private final class Scrape {
+        final String contentType;
+        private final Lock lock = new ReentrantLock();
+        private volatile Result result;
+
+        Scrape(String contentType) {
+            this.contentType = contentType;
+        }
+
+        Result get() {
+            Result current = result;
+            if (current != null && System.nanoTime() - current.scraped < SCRAPE_CACHE_NANOS) {
+                return current;
+            }
+            // Serve the previous result while another request scrapes, instead of waiting for it.
+            if (current == null) {
+                lock.lock();
+            } else if (!lock.tryLock()) {
+                return current;
+            }
+            try {
+                current = result;
+                if (current == null || System.nanoTime() - current.scraped >= SCRAPE_CACHE_NANOS) {
+                    current = new Result(registry.scrape(contentType).getBytes(StandardCharsets.UTF_8));
+                    result = current;
+                }
+                return current;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class Result {
+        final long scraped = System.nanoTime();
+        final byte[] content;
+        private byte[] gzipped;
+
+        Result(byte[] content) {
+            this.content = content;
+        }
+
+        synchronized byte[] gzipped() throws IOException {
+            if (gzipped == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    gzip.write(content);
+                }
+                gzipped = bytes.toByteArray();
+            }
+            return gzipped;
+        }
+    }
+}
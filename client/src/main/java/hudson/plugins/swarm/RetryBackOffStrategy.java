@@ -1,5 +1,7 @@
 package hudson.plugins.swarm;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 public enum RetryBackOffStrategy {
     NONE {
         @Override
@@ -18,9 +20,52 @@ public enum RetryBackOffStrategy {
     EXPONENTIAL {
         @Override
         public int waitForRetry(int retry, int interval, int maxTime) {
-            return Math.min(maxTime, interval * (int) Math.pow(2, retry));
+            return exponential(retry, interval, maxTime);
+        }
+    },
+
+    /** A random wait of at least one second, up to what {@link #EXPONENTIAL} would wait. */
+    FULL_JITTER {
+        @Override
+        public int waitForRetry(int retry, int interval, int maxTime) {
+            return random(1, exponential(retry, interval, maxTime));
+        }
+    },
+
+    /**
+     * A random wait between the interval and three times the previous wait, up to the maximum. Unlike
+     * {@link #FULL_JITTER}, the wait does not depend on the number of retries, so agents that failed
+     * at the same time drift apart with every retry.
+     */
+    DECORRELATED_JITTER {
+        @Override
+        public int waitForRetry(int retry, int interval, int maxTime) {
+            return waitForRetry(retry, interval, maxTime, 0);
+        }
+
+        @Override
+        public int waitForRetry(int retry, int interval, int maxTime, int previousWait) {
+            long upper = 3L * Math.max(interval, previousWait);
+            return Math.min(maxTime, random(interval, (int) Math.min(Integer.MAX_VALUE, upper)));
         }
     };
 
     abstract int waitForRetry(int retry, int interval, int maxTime);
+
+    /**
+     * @param previousWait the wait before the previous retry, or {@code 0} if there was none
+     */
+    int waitForRetry(int retry, int interval, int maxTime, int previousWait) {
+        return waitForRetry(retry, interval, maxTime);
+    }
+
+    /** Doubles the interval on each retry, without overflowing once there have been many retries. */
+    private static int exponential(int retry, int interval, int maxTime) {
+        long wait = (long) interval << Math.min(retry, 32);
+        return (int) Math.min(maxTime, wait);
+    }
+
+    private static int random(int min, int max) {
+        return max <= min ? max : ThreadLocalRandom.current().nextInt(min, max + 1);
+    }
 }
@@ -1,5 +1,7 @@
 package hudson.plugins.swarm;
 
+import java.time.Duration;
+
 /**
  * Indicates a graceful error reporting that doesn't need the stack dump.
  *
@@ -9,11 +11,25 @@ public class RetryException extends Exception {
 
     private static final long serialVersionUID = -9058647821506211062L;
 
+    /** How long the server asked to wait before retrying, or {@code null} if it did not say. */
+    private final Duration retryAfter;
+
     public RetryException(String message) {
-        super(message);
+        this(message, (Duration) null);
     }
 
     public RetryException(String message, Throwable cause) {
         super(message, cause);
+        this.retryAfter = null;
+    }
+
+    public RetryException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /** How long the server asked to wait before retrying, or {@code null} if it did not say. */
+    public Duration getRetryAfter() {
+        return retryAfter;
     }
 }
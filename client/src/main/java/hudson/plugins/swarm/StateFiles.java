@@ -0,0 +1,49 @@
+package hudson.plugins.swarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/** The files that the client keeps in {@code <fsroot>/.swarm} across restarts. */
+final class StateFiles {
+
+    static final String DIRECTORY = ".swarm";
+
+    private StateFiles() {}
+
+    /** Returns the path of the given file in the state directory of {@code fsroot}. */
+    static Path resolve(File fsroot, String file) {
+        return fsroot.toPath().resolve(DIRECTORY).resolve(file);
+    }
+
+    /**
+     * Replaces the file in one step, so that a crash does not leave a partial file. The file is only
+     * accessible by its owner on file systems with POSIX permissions.
+     */
+    static void store(Path file, Properties properties, String comment) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                    OutputStream os = Channels.newOutputStream(channel)) {
+                properties.store(os, comment);
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package hudson.plugins.swarm;
 
-import com.sun.net.httpserver.HttpServer;
-import hudson.remoting.Launcher;
+import hudson.remoting.Engine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.binder.jvm.ClassLoaderMetrics;
 import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
 import io.micrometer.core.instrument.binder.jvm.JvmHeapPressureMetrics;
@@ -15,15 +16,13 @@ import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.StringWriter;
 import java.io.UncheckedIOException;
-import java.io.UnsupportedEncodingException;
 import java.net.CookieManager;
 import java.net.HttpURLConnection;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.NetworkInterface;
 import java.net.SocketException;
@@ -34,73 +33,149 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.Text;
+import org.xml.sax.SAXException;
 
 public class SwarmClient {
 
     private static final Logger logger = Logger.getLogger(SwarmClient.class.getName());
 
     private final Options options;
-    private final String hash;
+    /** The unique ID of the client, computed when the agent first registers. */
+    private String hash;
+    private final List<LabelSource> labelSources;
+    /** The labels given with {@code -labels}, without those of the label sources. */
+    private final List<String> cliLabels;
     private String secret;
     private String name;
-    private HttpServer prometheusServer = null;
+
+    /**
+     * The TCP agent listener of Jenkins as given by the last registration, so that Remoting does not
+     * have to resolve it, or {@code null} if Jenkins did not give it.
+     */
+    private String directConnection;
+
+    private String instanceIdentity;
+    private List<String> protocols;
+
+    /**
+     * Whether connecting to {@link #directConnection} failed, so that Remoting resolves the endpoint
+     * until the next registration gives out the endpoint again.
+     */
+    private volatile boolean directConnectionFailed;
+    private boolean legacyRegistration;
+    private PrometheusServer prometheusServer = null;
+
+    /** The thread blocked in {@link #connect(URL)}, or {@code null} if the agent is not connected. */
+    private volatile Thread connectThread;
+
+    private volatile Engine engine;
+    private volatile long registrationStarted = System.nanoTime();
+    private volatile SwarmEngineListener engineListener;
+
+    private final AtomicBoolean reconnectRequested = new AtomicBoolean();
+
+    /**
+     * Whether the agent connected with the name and secret of its last registration, so that Jenkins
+     * probably still holds the node and the agent can connect again without registering.
+     */
+    private volatile boolean registrationValid;
+
+    /** How long the channel of the last call to {@link #connect(URL)} stayed established. */
+    private final AtomicLong lastUptimeNanos = new AtomicLong();
+
+    /** Whether the next registration replaces the agent even if Jenkins still sees it connected. */
+    private volatile boolean replaceExisting;
+
+    /** The shared HTTP clients, keyed by the options they were created with. */
+    private static final Map<List<Object>, HttpClient> httpClients = new HashMap<>();
+
+    /** Not defined by {@link HttpURLConnection}. */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    static final long CSRF_CRUMB_TTL_NANOS = TimeUnit.SECONDS.toNanos(
+            Long.getLong(SwarmClient.class.getName() + ".csrfCrumbTtlSeconds", TimeUnit.MINUTES.toSeconds(10)));
+
+    private static final Object crumbLock = new Object();
+    private static volatile Crumb cachedCrumb;
 
     public SwarmClient(Options options) {
         this.options = options;
-        if (!options.disableClientsUniqueId) {
-            this.hash = hash(options.fsroot);
-        } else {
-            this.hash = "";
-        }
         this.name = options.name;
+        this.cliLabels = new ArrayList<>(options.labels);
 
-        if (options.labelsFile != null) {
-            logger.info("Loading labels from " + options.labelsFile + "...");
+        this.labelSources = LabelSource.fromOptions(options);
+        for (LabelSource labelSource : labelSources) {
+            logger.info("Loading labels from " + labelSource + "...");
             try {
-                String labels = Files.readString(Paths.get(options.labelsFile), StandardCharsets.UTF_8);
-                options.labels.addAll(List.of(labels.trim().split("\\s+")));
-                logger.info("Labels found in file: " + labels);
+                Set<String> labels = labelSource.getLabels();
+                options.labels.addAll(labels);
+                logger.info("Labels found in " + labelSource + ": " + labels);
                 logger.info("Effective label list: " + Arrays.toString(options.labels.toArray()));
             } catch (IOException e) {
-                throw new UncheckedIOException("Problem reading labels from file " + options.labelsFile, e);
+                throw new UncheckedIOException("Problem reading labels from " + labelSource, e);
             }
         }
 
+        if (options.persistState) {
+            restoreState();
+        }
+
         if (options.prometheusPort > 0) {
             startPrometheusService(options.prometheusPort);
         }
+        if (options.metricsPushUrl != null) {
+            startMetricsPush();
+        }
     }
 
     public String getName() {
         return name;
     }
 
+    /** The sources of labels that may change while the client is running. */
+    List<LabelSource> getLabelSources() {
+        return labelSources;
+    }
+
+    /** The labels given on the command line, which the label sources add to. */
+    List<String> getCliLabels() {
+        return cliLabels;
+    }
+
     public List<String> getOptionsLabels() {
         /* Note: these labels might differ from run-time values assigned
          * to an actual agent, if someone edits it via configure page */
@@ -127,79 +202,176 @@ public class SwarmClient {
      * <p>Interrupt the thread to abort it and try connecting again.
      */
     void connect(URL url) throws IOException, RetryException {
-        List<String> args = new ArrayList<>();
-
-        args.add("-url");
-        args.add(url.toString());
+        // Without a registration before this connection, time it from now.
+        SwarmEngineListener listener =
+                new SwarmEngineListener(registrationValid ? System.nanoTime() : registrationStarted);
+        boolean direct = directConnection != null
+                && !directConnectionFailed
+                && !options.webSocket
+                && options.tunnel == null;
+        Engine engine = createEngine(url, listener, direct);
+
+        connectThread = Thread.currentThread();
+        try {
+            if (reconnectRequested.get()) {
+                // registered with settings that are already outdated
+                return;
+            }
+            engineListener = listener;
+            this.engine = engine;
+            engine.startEngine();
+            engine.join();
+        } catch (InterruptedException | RuntimeException e) {
+            if (reconnectRequested.get()) {
+                return;
+            }
+            throw new RetryException("Failed to establish connection to " + url, e);
+        } finally {
+            if (engine.isAlive()) {
+                engine.interrupt();
+            }
+            this.engine = null;
+            engineListener = null;
+            lastUptimeNanos.set(listener.getUptimeNanos());
+            registrationValid = listener.hasConnected() && !reconnectRequested.get();
+            if (direct && !listener.hasConnected() && !reconnectRequested.get()) {
+                logger.info("Failed to connect to " + directConnection
+                        + " directly, letting Remoting resolve the endpoint from now on");
+                directConnectionFailed = true;
+            }
+            connectThread = null;
+            if (reconnectRequested.get()) {
+                Thread.interrupted();
+            }
+        }
 
-        if (secret != null) {
-            args.add("-secret");
-            args.add(secret);
+        if (!listener.hasConnected() && !reconnectRequested.get()) {
+            throw new RetryException("Failed to establish connection to " + url, listener.getLastError());
         }
+    }
 
-        args.add("-name");
-        args.add(name);
+    /** Configures a Remoting engine that connects this agent once, since Swarm does its own retrying. */
+    private Engine createEngine(URL url, SwarmEngineListener listener, boolean direct) {
+        Engine engine = new Engine(listener, List.of(url), secret, name);
+        engine.setNoReconnect(true);
+
+        // Skip the request for the endpoint, since the registration returned it already.
+        if (direct) {
+            engine.setDirectConnection(directConnection);
+            engine.setInstanceIdentity(instanceIdentity);
+            engine.setProtocols(protocols);
+            logger.fine("Connecting directly to " + directConnection);
+        }
 
         if (options.disableSslVerification) {
-            args.add("-noCertificateCheck");
+            engine.setDisableHttpsCertValidation(true);
         }
 
         // if the tunnel option is set in the command line, use it
         if (options.tunnel != null) {
-            args.add("-tunnel");
-            args.add(options.tunnel);
+            engine.setTunnel(options.tunnel);
             logger.fine("Using tunnel through " + options.tunnel);
         }
 
         if (options.username != null && options.password != null && !options.webSocket) {
-            args.add("-credentials");
-            args.add(options.username + ":" + options.password);
+            engine.setCredentials(options.username + ":" + options.password);
         }
 
+        // The locations Remoting uses by default for the JAR cache
+        File jarCache = new File(System.getProperty("user.home"), ".jenkins/cache/jars");
         if (!options.disableWorkDir) {
-            String workDirPath = options.workDir != null ? options.workDir.getPath() : options.fsroot.getPath();
-            args.add("-workDir");
-            args.add(workDirPath);
+            File workDir = options.workDir != null ? options.workDir : options.fsroot;
+            engine.setWorkDir(workDir.toPath());
 
             if (options.internalDir != null) {
-                args.add("-internalDir");
-                args.add(options.internalDir.getPath());
+                engine.setInternalDir(options.internalDir.getPath());
             }
 
-            if (options.failIfWorkDirIsMissing) {
-                args.add("-failIfWorkDirIsMissing");
-            }
+            engine.setFailIfWorkDirIsMissing(options.failIfWorkDirIsMissing);
+            String internalDir = options.internalDir != null ? options.internalDir.getPath() : "remoting";
+            jarCache = new File(new File(workDir, internalDir), "jarCache");
         }
 
         if (options.jarCache != null) {
-            args.add("-jar-cache");
-            args.add(options.jarCache.getPath());
+            jarCache = options.jarCache;
         }
-
-        /*
-         * Swarm does its own retrying internally, so disable the retrying functionality in
-         * Remoting.
-         */
-        args.add("-noReconnect");
+        engine.setJarCache(new MeteredJarCache(jarCache, listener));
 
         if (options.webSocket) {
-            args.add("-webSocket");
+            engine.setWebSocket(true);
 
             if (options.webSocketHeaders != null) {
-                for (Map.Entry<String, String> entry : options.webSocketHeaders.entrySet()) {
-                    args.add("-webSocketHeader");
-                    args.add(entry.getKey() + "=" + entry.getValue());
-                }
+                engine.setWebSocketHeaders(options.webSocketHeaders);
             }
         }
 
-        try {
-            Launcher.main(args.toArray(new String[0]));
-        } catch (InterruptedException | RuntimeException e) {
-            throw new RetryException("Failed to establish connection to " + url, e);
+        return engine;
+    }
+
+    /**
+     * Tears down the connection to Jenkins so that {@link Client#run} registers the agent again
+     * with the current options and reconnects right away, without restarting the JVM.
+     */
+    void reconnect() {
+        registrationValid = false;
+        replaceExisting = true;
+        reconnectRequested.set(true);
+        Engine engine = this.engine;
+        if (engine != null) {
+            engine.interrupt();
+        }
+        Thread thread = connectThread;
+        if (thread != null) {
+            thread.interrupt();
         }
     }
 
+    /** The state of the connection to Jenkins. */
+    SwarmEngineListener.State getConnectionState() {
+        SwarmEngineListener listener = engineListener;
+        return listener == null ? SwarmEngineListener.State.DISCONNECTED : listener.getState();
+    }
+
+    /**
+     * Whether the agent can connect again without registering, because Jenkins keeps its node while
+     * it is disconnected and it connected successfully since it last registered.
+     */
+    boolean canReconnectWithoutRegistration() {
+        return options.keepDisconnectedClients && registrationValid && secret != null && !reconnectRequested.get();
+    }
+
+    boolean isReconnectRequested() {
+        return reconnectRequested.get();
+    }
+
+    /** Returns whether {@link #reconnect()} was called since the last call, and clears the request. */
+    boolean takeReconnectRequest() {
+        return reconnectRequested.getAndSet(false);
+    }
+
+    /**
+     * Returns how long the last connection stayed established, or {@code 0} if it was not
+     * established, and clears the value.
+     */
+    long takeLastUptimeNanos() {
+        return lastUptimeNanos.getAndSet(0);
+    }
+
+    /**
+     * Returns the HTTP client shared by all requests to the controller, so that connections and TLS
+     * sessions are kept alive and reused instead of being set up for every request. Requests share a
+     * client as long as their options agree on HTTP/2, CSRF protection and TLS verification.
+     */
+    @SuppressWarnings("lgtm[jenkins/unsafe-calls]")
+    static synchronized HttpClient getHttpClient(Options clientOptions) {
+        List<Object> key = Arrays.asList(
+                clientOptions.noHttp2,
+                clientOptions.noCrumb,
+                clientOptions.disableSslVerification,
+                clientOptions.sslFingerprints);
+        return httpClients.computeIfAbsent(key, unused -> createHttpClient(clientOptions));
+    }
+
     @SuppressWarnings("lgtm[jenkins/unsafe-calls]")
     static HttpClient createHttpClient(Options clientOptions) {
         logger.fine("createHttpClient() invoked");
@@ -249,47 +421,305 @@ public class SwarmClient {
         }
     }
 
-    private static synchronized Crumb getCsrfCrumb(HttpClient client, Options options, URL url)
+    /**
+     * Sends a request that needs a CSRF crumb. If Jenkins rejects the request, for example because the
+     * session the crumb belongs to expired or no crumb could be fetched before, the crumb is fetched
+     * again and the request is sent once more.
+     */
+    static <T> HttpResponse<T> sendWithCrumb(
+            HttpClient client,
+            HttpRequest.Builder builder,
+            HttpResponse.BodyHandler<T> bodyHandler,
+            Options options,
+            URL url)
+            throws IOException, InterruptedException, RetryException {
+        Crumb csrfCrumb = getCsrfCrumb(client, options, url);
+        setCrumbHeader(builder, csrfCrumb);
+        HttpResponse<T> response = client.send(builder.build(), bodyHandler);
+        HttpClientMetrics.record(response);
+        if (options.noCrumb || response.statusCode() != HttpURLConnection.HTTP_FORBIDDEN) {
+            return response;
+        }
+
+        logger.fine("Request was forbidden, fetching a new CSRF crumb");
+        if (response.body() instanceof InputStream) {
+            ((InputStream) response.body()).close();
+        }
+        invalidateCsrfCrumb(csrfCrumb);
+        setCrumbHeader(builder, getCsrfCrumb(client, options, url));
+        response = client.send(builder.build(), bodyHandler);
+        HttpClientMetrics.record(response);
+        return response;
+    }
+
+    private static void setCrumbHeader(HttpRequest.Builder builder, Crumb crumb) {
+        if (crumb != null && crumb.isIssued()) {
+            builder.setHeader(crumb.crumbRequestField, crumb.crumb);
+        }
+    }
+
+    /**
+     * Returns the cached CSRF crumb, fetching a new one when there is none or it is older than the
+     * TTL. That Jenkins issues no crumb because the crumb issuer is disabled is cached the same way,
+     * while other failures to fetch a crumb are not. Concurrent callers wait for a single fetch
+     * rather than each fetching a crumb. The session the crumb belongs to is kept by the cookie
+     * handler of the shared HTTP client.
+     *
+     * @return the crumb, which may not be {@linkplain Crumb#isIssued() issued}, or {@code null} with
+     *     {@code -noCrumb}
+     */
+    private static Crumb getCsrfCrumb(HttpClient client, Options options, URL url)
             throws IOException, InterruptedException, RetryException {
         if (options.noCrumb) {
             return null;
         }
-        logger.warning("For security and efficiency, pass -noCrumb and use an API token rather than a password.");
 
-        String[] crumbResponse;
+        Crumb crumb = cachedCrumb;
+        if (crumb == null || !crumb.isValidFor(url)) {
+            synchronized (crumbLock) {
+                crumb = cachedCrumb;
+                if (crumb == null || !crumb.isValidFor(url)) {
+                    crumb = fetchCsrfCrumb(client, options, url);
+                    if (crumb == null) {
+                        return Crumb.none(url.toString());
+                    }
+                    cachedCrumb = crumb;
+                }
+            }
+        }
+        return crumb;
+    }
+
+    private static void invalidateCsrfCrumb(Crumb crumb) {
+        synchronized (crumbLock) {
+            if (crumb != null && cachedCrumb == crumb) {
+                cachedCrumb = null;
+            }
+        }
+    }
+
+    private static Crumb fetchCsrfCrumb(HttpClient client, Options options, URL url)
+            throws IOException, InterruptedException, RetryException {
+        HttpResponse<String> response = client.send(crumbRequest(options, url), HttpResponse.BodyHandlers.ofString());
+        HttpClientMetrics.record(response);
+        return parseCsrfCrumb(response, url);
+    }
+
+    private static HttpRequest crumbRequest(Options options, URL url) {
+        logger.warning("For security and efficiency, pass -noCrumb and use an API token rather than a password.");
 
         URI uri = URI.create(url
                 + "crumbIssuer/api/xml?xpath="
                 + URLEncoder.encode("concat(//crumbRequestField,\":\",//crumb)", StandardCharsets.UTF_8));
         HttpRequest.Builder builder = HttpRequest.newBuilder(uri).GET();
         SwarmClient.addAuthorizationHeader(builder, options);
-        HttpRequest request = builder.build();
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        return builder.build();
+    }
+
+    /**
+     * Returns the crumb in the response, {@link Crumb#none} if the crumb issuer is disabled, or
+     * {@code null} if the crumb could not be fetched for another reason and should be fetched again.
+     */
+    private static Crumb parseCsrfCrumb(HttpResponse<String> response, URL url) throws RetryException {
         if (response.statusCode() != HttpURLConnection.HTTP_OK) {
             logger.log(
                     Level.SEVERE,
                     String.format(
                             "Could not obtain CSRF crumb. Response code: %s%n%s",
                             response.statusCode(), response.body()));
-            if (response.statusCode() >= 500 && response.statusCode() < 600)
-                throw new RetryException("Failed to obtain CSRF crumb due to an Internal Server "
-                        + "Error or similar condition. Response code: " + response.statusCode());
-            return null;
+            if (response.statusCode() == HTTP_TOO_MANY_REQUESTS
+                    || (response.statusCode() >= 500 && response.statusCode() < 600))
+                throw new RetryException(
+                        "Failed to obtain CSRF crumb due to an Internal Server "
+                                + "Error or similar condition. Response code: " + response.statusCode(),
+                        getRetryAfter(response));
+            return response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND ? Crumb.none(url.toString()) : null;
         }
 
         String crumbResponseString = response.body();
-        crumbResponse = crumbResponseString.split(":");
+        String[] crumbResponse = crumbResponseString.split(":");
         if (crumbResponse.length != 2) {
             logger.log(Level.SEVERE, "Unexpected CSRF crumb response: " + crumbResponseString);
             return null;
         }
 
-        return new Crumb(crumbResponse[0], crumbResponse[1]);
+        return new Crumb(url.toString(), crumbResponse[0], crumbResponse[1]);
     }
 
     void createSwarmAgent(URL url) throws IOException, InterruptedException, RetryException {
         logger.fine("createSwarmAgent() invoked");
 
+        long started = System.nanoTime();
+        registrationStarted = started;
+        registrationValid = false;
+        boolean success = false;
+        try {
+            register(url);
+            success = true;
+        } finally {
+            SwarmMetrics.registration(success, System.nanoTime() - started);
+        }
+    }
+
+    private void register(URL url) throws IOException, InterruptedException, RetryException {
+        HttpClient client = getHttpClient(options);
+        Properties props = legacyRegistration ? null : registerSwarmAgent(client, url);
+        if (props != null) {
+            readRegistration(props);
+        } else {
+            if (!legacyRegistration) {
+                logger.info(
+                        "Jenkins does not support registering agents with a request body, using query parameters");
+                legacyRegistration = true;
+            }
+            createSwarmAgentWithQuery(client, url);
+        }
+        replaceExisting = false;
+        if (options.persistState) {
+            new ClientState(name, secret, directConnection, instanceIdentity, protocols)
+                    .store(options.fsroot, ClientState.fingerprint(options, getHash()));
+        }
+    }
+
+    /**
+     * Takes the registration from the state a previous run of the client left, so that the agent
+     * connects without registering, unless the options changed since.
+     */
+    private void restoreState() {
+        if (options.regenerateClientId) {
+            logger.info("Registering again because the client ID is regenerated");
+            return;
+        }
+        ClientState state = ClientState.load(options.fsroot, ClientState.fingerprint(options, getHash()));
+        if (state == null) {
+            return;
+        }
+        name = state.name;
+        secret = state.secret;
+        directConnection = state.directConnection;
+        instanceIdentity = state.instanceIdentity;
+        protocols = state.protocols;
+        registrationValid = true;
+        logger.info("Restored the registration of " + name + ", connecting without registering");
+    }
+
+    /** The unique ID of the client, which Jenkins appends to the name of the agent. */
+    private synchronized String getHash() {
+        if (hash == null) {
+            if (options.persistClientId) {
+                hash = ClientIdentity.load(options.fsroot, options.regenerateClientId, () -> hash(options.fsroot));
+            } else if (!options.disableClientsUniqueId) {
+                hash = hash(options.fsroot);
+            } else {
+                hash = "";
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Registers the agent with all of its parameters in the request body.
+     *
+     * @return the name and secret of the agent, or {@code null} if Jenkins does not support this
+     *     way of registering agents
+     */
+    private Properties registerSwarmAgent(HttpClient client, URL url)
+            throws IOException, InterruptedException, RetryException {
+        Properties body = new Properties();
+        body.setProperty("name", options.name);
+        body.setProperty("executors", Integer.toString(options.executors));
+        body.setProperty("remoteFsRoot", options.fsroot.getAbsolutePath());
+        if (options.description != null) {
+            body.setProperty("description", options.description);
+        }
+        body.setProperty("labels", String.join(" ", options.labels));
+        if (options.toolLocations != null) {
+            for (Map.Entry<String, String> toolLocation : options.toolLocations.entrySet()) {
+                body.setProperty("toolLocation." + toolLocation.getKey(), toolLocation.getValue());
+            }
+        }
+        if (options.environmentVariables != null) {
+            for (Map.Entry<String, String> environmentVariable : options.environmentVariables.entrySet()) {
+                body.setProperty(
+                        "environmentVariable." + environmentVariable.getKey(), environmentVariable.getValue());
+            }
+        }
+        body.setProperty("mode", options.mode.toUpperCase(Locale.ENGLISH));
+        body.setProperty("hash", getHash());
+        body.setProperty("deleteExistingClients", Boolean.toString(options.deleteExistingClients || replaceExisting));
+        body.setProperty("keepDisconnectedClients", Boolean.toString(options.keepDisconnectedClients));
+        StringWriter writer = new StringWriter();
+        body.store(writer, null);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url + "plugin/swarm/registerSlave"))
+                .header("Content-Type", "text/plain; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(writer.toString(), StandardCharsets.UTF_8));
+        SwarmClient.addAuthorizationHeader(builder, options);
+        HttpResponse<InputStream> response =
+                sendWithCrumb(client, builder, HttpResponse.BodyHandlers.ofInputStream(), options, url);
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            response.body().close();
+            return null;
+        }
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new RetryException(
+                    String.format(
+                            "Failed to create a Swarm agent on Jenkins. Response code: %s%n%s",
+                            response.statusCode(),
+                            new String(response.body().readAllBytes(), StandardCharsets.UTF_8)),
+                    getRetryAfter(response));
+        }
+
+        Properties props = new Properties();
+        try (InputStream stream = response.body()) {
+            props.load(stream);
+        }
+        return props;
+    }
+
+    private void readRegistration(Properties props) {
+        String secret = props.getProperty("secret");
+        if (secret != null) {
+            this.secret = secret.trim();
+        }
+
+        String name = props.getProperty("name");
+        if (name == null || name.trim().isEmpty()) {
+            this.name = options.name;
+        } else {
+            this.name = name.trim();
+        }
+
+        // Only given by plugin versions that let the agent skip resolving the endpoint.
+        String tcpPort = props.getProperty("tcpPort");
+        String host = props.getProperty("host");
+        String identity = props.getProperty("instanceIdentity");
+        if (tcpPort == null || host == null || identity == null) {
+            directConnection = null;
+            return;
+        }
+        host = host.trim();
+        if (host.contains(":") && !host.startsWith("[")) {
+            host = "[" + host + "]";
+        }
+        try {
+            int port = Integer.parseInt(tcpPort.trim());
+            directConnection = port > 0 ? host + ":" + port : null;
+        } catch (NumberFormatException e) {
+            logger.log(Level.FINE, "Ignoring invalid TCP port: " + tcpPort, e);
+            directConnection = null;
+        }
+        instanceIdentity = identity.trim();
+        String protocolList = props.getProperty("protocols", "").trim();
+        protocols = protocolList.isEmpty() ? null : List.of(protocolList.split("\\s*,\\s*"));
+        // a direct connection usually fails because the controller restarted, so try the endpoint
+        // that the controller just gave out
+        directConnectionFailed = false;
+    }
+
+    /** Registers the agent the way Jenkins versions without {@code registerSlave} expect. */
+    private void createSwarmAgentWithQuery(HttpClient client, URL url)
+            throws IOException, InterruptedException, RetryException {
         String labelStr = String.join(" ", options.labels);
         StringBuilder toolLocationBuilder = new StringBuilder();
         if (options.toolLocations != null) {
@@ -314,7 +744,6 @@ public class SwarmClient {
 
         Properties props = new Properties();
 
-        HttpClient client = createHttpClient(options);
         URI uri = URI.create(url
                 + "plugin/swarm/createSlave?name="
                 + options.name
@@ -326,106 +755,162 @@ public class SwarmClient {
                 + toolLocationBuilder
                 + environmentVariablesBuilder
                 + param("mode", options.mode.toUpperCase(Locale.ENGLISH))
-                + param("hash", hash)
-                + param("deleteExistingClients", Boolean.toString(options.deleteExistingClients))
+                + param("hash", getHash())
+                + param("deleteExistingClients", Boolean.toString(options.deleteExistingClients || replaceExisting))
                 + param("keepDisconnectedClients", Boolean.toString(options.keepDisconnectedClients)));
         HttpRequest.Builder builder = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody());
         SwarmClient.addAuthorizationHeader(builder, options);
-        Crumb csrfCrumb = getCsrfCrumb(client, options, url);
-        if (csrfCrumb != null) {
-            builder.header(csrfCrumb.crumbRequestField, csrfCrumb.crumb);
-        }
-        HttpRequest request = builder.build();
-
-        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        HttpResponse<InputStream> response =
+                sendWithCrumb(client, builder, HttpResponse.BodyHandlers.ofInputStream(), options, url);
         if (response.statusCode() != HttpURLConnection.HTTP_OK) {
-            throw new RetryException(String.format(
-                    "Failed to create a Swarm agent on Jenkins. Response code: %s%n%s",
-                    response.statusCode(), new String(response.body().readAllBytes(), StandardCharsets.UTF_8)));
+            throw new RetryException(
+                    String.format(
+                            "Failed to create a Swarm agent on Jenkins. Response code: %s%n%s",
+                            response.statusCode(),
+                            new String(response.body().readAllBytes(), StandardCharsets.UTF_8)),
+                    getRetryAfter(response));
         }
 
         try (InputStream stream = response.body()) {
             props.load(stream);
         }
 
-        String secret = props.getProperty("secret");
-        if (secret != null) {
-            this.secret = secret.trim();
-        }
+        readRegistration(props);
 
-        String name = props.getProperty("name");
-        if (name == null) {
-            this.name = options.name;
-            return;
+        // special handling for very long lists of labels (avoids 413 FULL Header error)
+        if (sMyLabels.length() == 0 && labelStr.length() > 0) {
+            postLabelAppend(this.name, labelStr, client, options, url);
         }
-        name = name.trim();
-        if (name.isEmpty()) {
-            this.name = options.name;
-            return;
+    }
+
+    /**
+     * Adds the whitespace-separated labels to the agent. Long label lists are sent in chunks that fit
+     * into a query string, one request at a time, because controllers that only support adding and
+     * removing labels lose concurrent updates of the same agent.
+     */
+    static void postLabelAppend(String name, String labels, HttpClient client, Options options, URL url)
+            throws IOException, InterruptedException, RetryException {
+        for (String chunk : labelChunks(labels)) {
+            postLabels("addSlaveLabels", name, chunk, client, options, url, "Failed to update agent labels");
         }
-        this.name = name;
+    }
 
-        // special handling for very long lists of labels (avoids 413 FULL Header error)
-        if (sMyLabels.length() == 0 && labelStr.length() > 0) {
-            String[] lLabels = labelStr.split("\\s+");
-            StringBuilder sb = new StringBuilder();
-            for (String s : lLabels) {
-                sb.append(s);
-                sb.append(" ");
-                if (sb.length() > 1000) {
-                    postLabelAppend(name, sb.toString(), client, options, url);
-                    sb = new StringBuilder();
-                }
-            }
-            if (sb.length() > 0) {
-                postLabelAppend(name, sb.toString(), client, options, url);
-            }
+    /** Removes the whitespace-separated labels from the agent, in chunks like {@link #postLabelAppend}. */
+    static void postLabelRemove(String name, String labels, HttpClient client, Options options, URL url)
+            throws IOException, InterruptedException, RetryException {
+        for (String chunk : labelChunks(labels)) {
+            postLabels("removeSlaveLabels", name, chunk, client, options, url, "Failed to remove agent labels");
         }
     }
 
-    static synchronized void postLabelRemove(String name, String labels, HttpClient client, Options options, URL url)
+    private static void postLabels(
+            String method, String name, String labels, HttpClient client, Options options, URL url, String failure)
             throws IOException, InterruptedException, RetryException {
-        URI uri = URI.create(url + "plugin/swarm/removeSlaveLabels?name=" + name + SwarmClient.param("labels", labels));
+        URI uri = URI.create(url + "plugin/swarm/" + method + "?name=" + encode(name) + param("labels", labels));
         HttpRequest.Builder builder = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody());
-        SwarmClient.addAuthorizationHeader(builder, options);
-        Crumb csrfCrumb = SwarmClient.getCsrfCrumb(client, options, url);
-        if (csrfCrumb != null) {
-            builder.header(csrfCrumb.crumbRequestField, csrfCrumb.crumb);
+        addAuthorizationHeader(builder, options);
+        HttpResponse<String> response =
+                sendWithCrumb(client, builder, HttpResponse.BodyHandlers.ofString(), options, url);
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new RetryException(
+                    String.format("%s. Response code: %s%n%s", failure, response.statusCode(), response.body()));
         }
-        HttpRequest request = builder.build();
+    }
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
-            throw new RetryException(String.format(
-                    "Failed to remove agent labels. Response code: %s%n%s", response.statusCode(), response.body()));
+    /** Splits the whitespace-separated labels into chunks of about 1000 characters. */
+    static List<String> labelChunks(String labels) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (String label : labels.split("\\s+")) {
+            if (label.isEmpty()) {
+                continue;
+            }
+            sb.append(label);
+            sb.append(" ");
+            if (sb.length() > 1000) {
+                chunks.add(sb.toString());
+                sb = new StringBuilder();
+            }
         }
+        if (sb.length() > 0) {
+            chunks.add(sb.toString());
+        }
+        return chunks;
     }
 
-    static synchronized void postLabelAppend(String name, String labels, HttpClient client, Options options, URL url)
+    /**
+     * Replaces all labels of the agent in a single request.
+     *
+     * @return the labels of the agent after the update, or {@code null} if the controller does not
+     *     support replacing labels
+     */
+    static String postLabelSet(String name, String labels, HttpClient client, Options options, URL url)
             throws IOException, InterruptedException, RetryException {
-        URI uri = URI.create(url + "plugin/swarm/addSlaveLabels?name=" + name + param("labels", labels));
-        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody());
+        URI uri = URI.create(url + "plugin/swarm/setSlaveLabels?name=" + encode(name));
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .header("Content-Type", "text/plain; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(labels, StandardCharsets.UTF_8));
         SwarmClient.addAuthorizationHeader(builder, options);
-        Crumb csrfCrumb = getCsrfCrumb(client, options, url);
-        if (csrfCrumb != null) {
-            builder.header(csrfCrumb.crumbRequestField, csrfCrumb.crumb);
+        HttpResponse<InputStream> response =
+                sendWithCrumb(client, builder, HttpResponse.BodyHandlers.ofInputStream(), options, url);
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            response.body().close();
+            return null;
         }
-        HttpRequest request = builder.build();
-
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
         if (response.statusCode() != HttpURLConnection.HTTP_OK) {
-            throw new RetryException(String.format(
-                    "Failed to update agent labels. Response code: %s%n%s", response.statusCode(), response.body()));
+            throw new RetryException(
+                    String.format(
+                            "Failed to set agent labels. Response code: %s%n%s",
+                            response.statusCode(),
+                            new String(response.body().readAllBytes(), StandardCharsets.UTF_8)),
+                    getRetryAfter(response));
+        }
+
+        try (InputStream stream = response.body()) {
+            Document xml = XmlUtils.parse(stream);
+            return getChildElementString(xml.getDocumentElement(), "labels");
+        } catch (SAXException e) {
+            throw new IOException("Invalid XML received from " + url, e);
+        }
+    }
+
+    /**
+     * Returns the delay a controller or reverse proxy asked for with {@code Retry-After} when it
+     * rejected a request as too many or while it is unavailable, or {@code null} if it did not ask
+     * for one. The header holds either a number of seconds or an HTTP date.
+     */
+    static Duration getRetryAfter(HttpResponse<?> response) {
+        if (response.statusCode() != HTTP_TOO_MANY_REQUESTS
+                && response.statusCode() != HttpURLConnection.HTTP_UNAVAILABLE) {
+            return null;
+        }
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // not a number of seconds
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            Duration delay = Duration.between(Instant.now(), date.toInstant());
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException e) {
+            logger.log(Level.FINE, "Ignoring invalid Retry-After header: " + value, e);
+            return null;
         }
     }
 
-    private static synchronized String encode(String value) throws UnsupportedEncodingException {
+    static String encode(String value) {
         logger.finer("encode() invoked");
 
         return URLEncoder.encode(value, StandardCharsets.UTF_8);
     }
 
-    private static synchronized String param(String name, String value) throws UnsupportedEncodingException {
+    static String param(String name, String value) {
         logger.finer("param() invoked");
 
         if (value == null) {
@@ -511,7 +996,7 @@ public class SwarmClient {
     @SuppressWarnings("lgtm[jenkins/unsafe-calls]")
     public void exitWithStatus(int status) {
         if (prometheusServer != null) {
-            prometheusServer.stop(1);
+            prometheusServer.stop();
         }
         System.exit(status);
     }
@@ -523,28 +1008,11 @@ public class SwarmClient {
     private void startPrometheusService(int port) {
         logger.fine("Starting Prometheus service on port " + port);
         PrometheusMeterRegistry prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
-        // Add some standard metrics to the registry
-        new ClassLoaderMetrics().bindTo(prometheusRegistry);
-        new FileDescriptorMetrics().bindTo(prometheusRegistry);
-        new JvmGcMetrics().bindTo(prometheusRegistry);
-        new JvmHeapPressureMetrics().bindTo(prometheusRegistry);
-        new JvmMemoryMetrics().bindTo(prometheusRegistry);
-        new JvmThreadMetrics().bindTo(prometheusRegistry);
-        new ProcessorMetrics().bindTo(prometheusRegistry);
-        new UptimeMetrics().bindTo(prometheusRegistry);
+        bindMetrics(prometheusRegistry);
 
         try {
-            prometheusServer = HttpServer.create(new InetSocketAddress(port), 0);
-            prometheusServer.createContext("/prometheus", httpExchange -> {
-                String response = prometheusRegistry.scrape();
-                byte[] responseContent = response.getBytes(StandardCharsets.UTF_8);
-                httpExchange.sendResponseHeaders(200, responseContent.length);
-                try (OutputStream os = httpExchange.getResponseBody()) {
-                    os.write(responseContent);
-                }
-            });
-
-            new Thread(prometheusServer::start).start();
+            prometheusServer = new PrometheusServer(port, prometheusRegistry);
+            prometheusServer.start();
         } catch (IOException e) {
             logger.severe("Failed to start Prometheus service: " + e.getMessage());
             throw new UncheckedIOException(e);
@@ -552,6 +1020,30 @@ public class SwarmClient {
         logger.info("Started Prometheus service on port " + port);
     }
 
+    private void startMetricsPush() {
+        MetricsPusher pusher = MetricsPusher.create(options);
+        bindMetrics(pusher.getRegistry());
+        pusher.start();
+        // push one last time however the JVM exits, including on SIGTERM
+        Runtime.getRuntime().addShutdownHook(new Thread(pusher::stop, "Metrics push on exit"));
+        logger.info(
+                "Pushing metrics to " + options.metricsPushUrl + " every " + options.metricsPushInterval + " seconds");
+    }
+
+    private static void bindMetrics(MeterRegistry registry) {
+        // Add some standard metrics to the registry
+        new ClassLoaderMetrics().bindTo(registry);
+        new FileDescriptorMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmHeapPressureMetrics().bindTo(registry);
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+        new ProcessorMetrics().bindTo(registry);
+        new UptimeMetrics().bindTo(registry);
+        // Expose the metrics the client records itself
+        Metrics.addRegistry(registry);
+    }
+
     private static class DefaultTrustManager implements X509TrustManager {
 
         final List<String> allowedFingerprints = new ArrayList<>();
@@ -610,13 +1102,33 @@ public class SwarmClient {
         }
     }
 
-    private static class Crumb {
+    static class Crumb {
+        final String url;
         final String crumb;
         final String crumbRequestField;
+        final long fetched = System.nanoTime();
 
-        Crumb(String crumbRequestField, String crumb) {
+        Crumb(String url, String crumbRequestField, String crumb) {
+            this.url = url;
             this.crumbRequestField = crumbRequestField;
             this.crumb = crumb;
         }
+
+        /** Records that Jenkins issues no crumb, so that it is not asked again until the TTL passes. */
+        static Crumb none(String url) {
+            return new Crumb(url, null, null);
+        }
+
+        boolean isIssued() {
+            return crumbRequestField != null;
+        }
+
+        boolean isValidFor(URL url) {
+            return isValidFor(url, System.nanoTime());
+        }
+
+        boolean isValidFor(URL url, long now) {
+            return this.url.equals(url.toString()) && now - fetched < CSRF_CRUMB_TTL_NANOS;
+        }
     }
 }
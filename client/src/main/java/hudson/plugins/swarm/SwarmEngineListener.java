@@ -0,0 +1,128 @@
+package hudson.plugins.swarm;
+
+import hudson.remoting.EngineListener;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the events of the Remoting {@link hudson.remoting.Engine} that connects the agent, logs
+ * them, and keeps track of the state of the connection.
+ *
+ * <p>The engine has no event for an established connection other than its {@code Connected} status
+ * over TCP, so the connection is also taken as established once the channel first reaches the
+ * agent through the {@link MeteredJarCache}, which covers WebSocket connections. Whichever comes
+ * first counts.
+ */
+class SwarmEngineListener implements EngineListener {
+
+    private static final Logger logger = Logger.getLogger(SwarmEngineListener.class.getName());
+
+    /** The status the engine reports once it connected over TCP. */
+    static final String CONNECTED_STATUS = "Connected";
+
+    enum State {
+        CONNECTING,
+        CONNECTED,
+        DISCONNECTED
+    }
+
+    private volatile State state = State.CONNECTING;
+    private volatile Throwable lastError;
+    private volatile long connectStarted;
+    private volatile long connected;
+    private volatile long disconnected;
+    private volatile long connectDurationNanos = -1;
+
+    SwarmEngineListener() {
+        this(System.nanoTime());
+    }
+
+    /** @param started when the agent started to register, as given by {@link System#nanoTime()} */
+    SwarmEngineListener(long started) {
+        this.connectStarted = started;
+    }
+
+    @Override
+    public void status(String msg) {
+        logger.info(msg);
+        if (CONNECTED_STATUS.equals(msg)) {
+            channelEstablished();
+        }
+    }
+
+    @Override
+    public void status(String msg, Throwable t) {
+        logger.log(Level.INFO, msg, t);
+    }
+
+    @Override
+    public void error(Throwable t) {
+        logger.log(Level.SEVERE, t.getMessage(), t);
+        lastError = t;
+    }
+
+    @Override
+    public synchronized void onDisconnect() {
+        if (state == State.CONNECTED) {
+            disconnected = System.nanoTime();
+            logger.info(String.format(
+                    "Disconnected after %d seconds", TimeUnit.NANOSECONDS.toSeconds(disconnected - connected)));
+        }
+        state = State.DISCONNECTED;
+    }
+
+    @Override
+    public synchronized void onReconnect() {
+        state = State.CONNECTING;
+        connectStarted = System.nanoTime();
+    }
+
+    /**
+     * Called once the connection to the controller is established, either by the engine or when the
+     * channel is first in use by the agent. Only the first call for a connection counts.
+     */
+    synchronized void channelEstablished() {
+        if (state != State.CONNECTING) {
+            return;
+        }
+        connected = System.nanoTime();
+        connectDurationNanos = connected - connectStarted;
+        state = State.CONNECTED;
+        SwarmMetrics.online(connectDurationNanos);
+        logger.fine(String.format("Connected in %d ms", TimeUnit.NANOSECONDS.toMillis(connectDurationNanos)));
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /** Whether the engine established a channel at some point. */
+    boolean hasConnected() {
+        return connectDurationNanos >= 0;
+    }
+
+    /**
+     * How long it took from the start of the registration to establish the channel, or {@code -1} if
+     * it has not been established.
+     */
+    long getConnectDurationNanos() {
+        return connectDurationNanos;
+    }
+
+    /**
+     * How long the channel stayed established, or {@code 0} if it has not been established. Until
+     * the channel is lost, this is how long it has been established so far.
+     */
+    long getUptimeNanos() {
+        if (!hasConnected()) {
+            return 0;
+        }
+        return (state == State.CONNECTED ? System.nanoTime() : disconnected) - connected;
+    }
+
+    /** The last error the engine reported, or {@code null} if there was none. */
+    Throwable getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,82 @@
+package hudson.plugins.swarm;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the lifecycle of the Swarm agent: registrations, connections, retries, and label
+ * updates.
+ */
+final class SwarmMetrics {
+
+    private static final Timer registrationDuration = Timer.builder("swarm.registration.duration")
+            .description("Time taken to register the agent with the controller")
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+
+    private static final Timer timeToOnline = Timer.builder("swarm.time.to.online")
+            .description("Time from the start of a registration until the agent is connected")
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+
+    private static final AtomicInteger backoffSeconds =
+            Metrics.gauge("swarm.retry.backoff.seconds", new AtomicInteger());
+
+    private SwarmMetrics() {}
+
+    /** The clients whose connection state is exposed; more than one when a process runs several agents. */
+    private static final Set<SwarmClient> clients = new CopyOnWriteArraySet<>();
+
+    /** Exposes the state of the connection of the client as one gauge per state, counting the agents in it. */
+    static synchronized void bindConnectionState(SwarmClient client) {
+        if (!clients.add(client) || clients.size() > 1) {
+            return;
+        }
+        for (SwarmEngineListener.State state : SwarmEngineListener.State.values()) {
+            Metrics.gauge(
+                    "swarm.connection.state",
+                    Tags.of("state", state.name().toLowerCase(Locale.ENGLISH)),
+                    clients,
+                    c -> c.stream().filter(s -> s.getConnectionState() == state).count());
+        }
+    }
+
+    static void registration(boolean success, long durationNanos) {
+        Metrics.counter("swarm.registrations", "result", success ? "success" : "failure").increment();
+        registrationDuration.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    static void connectAttempt() {
+        Metrics.counter("swarm.connect.attempts").increment();
+    }
+
+    static void online(long nanosSinceRegistration) {
+        timeToOnline.record(nanosSinceRegistration, TimeUnit.NANOSECONDS);
+        backoffSeconds.set(0);
+    }
+
+    /**
+     * @param phase {@code registration} or {@code connection}
+     * @param e the failure; a {@link RetryException} is counted by its cause, if it has one
+     */
+    static void failure(String phase, Throwable e) {
+        Throwable cause = e instanceof RetryException && e.getCause() != null ? e.getCause() : e;
+        Metrics.counter("swarm.failures", "phase", phase, "cause", cause.getClass().getSimpleName()).increment();
+    }
+
+    static void retry(int waitSeconds) {
+        Metrics.counter("swarm.retries").increment();
+        backoffSeconds.set(waitSeconds);
+    }
+
+    /** @param type {@code soft} or {@code hard} */
+    static void labelUpdate(String type) {
+        Metrics.counter("swarm.label.updates", "type", type).increment();
+    }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.swarm;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches labels from an HTTP URL, as given by {@code -labelsUrl}, typically served by a local
+ * inventory agent. The URL is fetched again once the refresh interval has passed, as a conditional
+ * request if the server sent an {@code ETag} or {@code Last-Modified} header. If the fetch fails,
+ * the labels of the last successful fetch are kept.
+ */
+final class UrlLabelSource implements LabelSource {
+
+    private static final Logger logger = Logger.getLogger(UrlLabelSource.class.getName());
+
+    private final URI uri;
+    private final Duration refreshInterval;
+    private final HttpClient client;
+
+    private Set<String> labels = Set.of();
+    private String etag;
+    private String lastModified;
+    private long lastFetch;
+    private boolean hasFetched;
+
+    UrlLabelSource(URI uri, Duration refreshInterval) {
+        this.uri = uri;
+        this.refreshInterval = refreshInterval;
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @Override
+    public synchronized Set<String> getLabels() {
+        if (hasFetched && System.nanoTime() - lastFetch < refreshInterval.toNanos()) {
+            return labels;
+        }
+
+        try {
+            fetch();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to get labels from " + this + ", keeping the previous labels", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        hasFetched = true;
+        lastFetch = System.nanoTime();
+        return labels;
+    }
+
+    @Override
+    public Duration getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    private void fetch() throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET();
+        if (etag != null) {
+            builder.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            builder.header("If-Modified-Since", lastModified);
+        }
+
+        HttpResponse<String> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            logger.log(Level.FINEST, "Labels at " + uri + " have not changed");
+            return;
+        }
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected response code: " + response.statusCode());
+        }
+
+        labels = LabelSource.parseLabels(response.body());
+        etag = response.headers().firstValue("ETag").orElse(null);
+        lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+    }
+
+    @Override
+    public String toString() {
+        return "URL " + uri;
+    }
+}
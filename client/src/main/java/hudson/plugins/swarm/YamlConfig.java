@@ -1,8 +1,12 @@
 package hudson.plugins.swarm;
 
+import java.io.File;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
 import org.kohsuke.args4j.Option;
 import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.Yaml;
@@ -32,9 +36,47 @@ public class YamlConfig {
             throw new ConfigurationException("'mode' has an invalid value: '" + options.mode + "'");
         }
 
+        if (options.agents != null) {
+            checkAgents(options);
+        }
+
         return options;
     }
 
+    private void checkAgents(Options options) throws ConfigurationException {
+        if (options.agents.isEmpty()) {
+            throw new ConfigurationException("'agents' must not be empty");
+        }
+        // Each agent has its own name and Remoting working directory.
+        checkForbidden(options.name != null, "name", "agents");
+        checkForbidden(options.workDir != null, "workDir", "agents");
+
+        Set<String> names = new HashSet<>();
+        Set<Path> fsroots = new HashSet<>();
+        for (AgentOptions agent : options.agents) {
+            if (agent.name == null) {
+                throw new ConfigurationException("'name' is required for each of the 'agents'");
+            }
+            if (!names.add(agent.name)) {
+                throw new ConfigurationException("'agents' contains '" + agent.name + "' more than once");
+            }
+            if (agent.executors != null && agent.executors < 1) {
+                throw new ConfigurationException("'executors' of agent '" + agent.name + "' must be positive");
+            }
+            File fsroot = agent.fsroot != null ? agent.fsroot : options.fsroot;
+            if (!fsroots.add(fsroot.toPath().toAbsolutePath().normalize())) {
+                throw new ConfigurationException(
+                        "'fsroot' of agent '" + agent.name + "' is used by another agent: " + fsroot);
+            }
+        }
+    }
+
+    private void checkForbidden(boolean hasValue, String name, String with) throws ConfigurationException {
+        if (hasValue) {
+            throw new ConfigurationException("'" + name + "' can not be used with '" + with + "'");
+        }
+    }
+
     private void checkForbidden(boolean hasValue, String name) throws ConfigurationException {
         if (hasValue) {
             throw new ConfigurationException("'" + name + "' is not allowed in configuration file");
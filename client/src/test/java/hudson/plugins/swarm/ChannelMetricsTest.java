@@ -0,0 +1,53 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Before
+    public void addRegistry() {
+        Metrics.addRegistry(registry);
+    }
+
+    @After
+    public void removeRegistry() {
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    public void should_export_meters_before_a_channel_is_established() {
+        ChannelMetrics.register();
+        assertNotNull(registry.find("swarm.channel.bytes").tag("direction", "sent").counter());
+        assertNotNull(registry.find("swarm.channel.bytes").tag("direction", "received").counter());
+        assertNotNull(registry.find("swarm.channel.pending.calls").tag("direction", "outgoing").gauge());
+        assertNotNull(registry.find("swarm.channel.ping.duration").timer());
+    }
+
+    @Test
+    public void should_count_bytes_and_commands() {
+        ChannelMetrics.Traffic traffic = new ChannelMetrics.Traffic("test");
+        traffic.record(String.class, 10);
+        traffic.record(String.class, 5);
+        traffic.record(Integer.class, 1);
+
+        assertEquals(16.0, registry.get("swarm.channel.bytes").tag("direction", "test").counter().count(), 0);
+        assertEquals(2.0, commands("test", "String"), 0);
+        assertEquals(1.0, commands("test", "Integer"), 0);
+    }
+
+    private double commands(String direction, String command) {
+        return registry.get("swarm.channel.commands")
+                .tags("direction", direction, "command", command)
+                .counter()
+                .count();
+    }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClientIdentityTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void should_reuse_persisted_id() throws IOException {
+        File fsroot = temporaryFolder.newFolder();
+        assertEquals("0a1b2c3d", ClientIdentity.load(fsroot, false, () -> "0a1b2c3d"));
+        assertEquals("0a1b2c3d", ClientIdentity.load(fsroot, false, () -> "ffffffff"));
+        assertEquals("ffffffff", ClientIdentity.load(fsroot, true, () -> "ffffffff"));
+        assertEquals("ffffffff", ClientIdentity.load(fsroot, false, () -> "0a1b2c3d"));
+    }
+
+    @Test
+    public void should_regenerate_malformed_id() throws IOException {
+        File fsroot = temporaryFolder.newFolder();
+        Path file = fsroot.toPath().resolve(StateFiles.DIRECTORY).resolve(ClientIdentity.FILE);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "hash=nonsense\nfsroot=" + fsroot.getCanonicalPath() + "\n", StandardCharsets.UTF_8);
+        assertEquals("0a1b2c3d", ClientIdentity.load(fsroot, false, () -> "0a1b2c3d"));
+    }
+
+    @Test
+    public void should_regenerate_id_of_copied_fsroot() throws IOException {
+        File fsroot = temporaryFolder.newFolder();
+        ClientIdentity.load(fsroot, false, () -> "0a1b2c3d");
+
+        File copy = temporaryFolder.newFolder();
+        Path file = copy.toPath().resolve(StateFiles.DIRECTORY).resolve(ClientIdentity.FILE);
+        Files.createDirectories(file.getParent());
+        Files.copy(fsroot.toPath().resolve(StateFiles.DIRECTORY).resolve(ClientIdentity.FILE), file);
+        assertEquals("ffffffff", ClientIdentity.load(copy, false, () -> "ffffffff"));
+    }
+}
@@ -0,0 +1,72 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClientStateTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void should_restore_state_for_same_options() throws IOException {
+        Options options = givenOptions();
+        new ClientState("agent-0a1b2c3d", "secret", "jenkins:50000", "identity", List.of("JNLP4-connect"))
+                .store(options.fsroot, ClientState.fingerprint(options, "0a1b2c3d"));
+
+        ClientState state =
+                ClientState.load(options.fsroot, ClientState.fingerprint(givenOptions(options.fsroot), "0a1b2c3d"));
+        assertEquals("agent-0a1b2c3d", state.name);
+        assertEquals("secret", state.secret);
+        assertEquals("jenkins:50000", state.directConnection);
+        assertEquals("identity", state.instanceIdentity);
+        assertEquals(List.of("JNLP4-connect"), state.protocols);
+    }
+
+    @Test
+    public void should_ignore_state_once_options_change() throws IOException {
+        Options options = givenOptions();
+        String fingerprint = ClientState.fingerprint(options, "0a1b2c3d");
+        new ClientState("agent", "secret", null, null, null).store(options.fsroot, fingerprint);
+
+        options.executors++;
+        assertNotEquals(fingerprint, ClientState.fingerprint(options, "0a1b2c3d"));
+        assertNull(ClientState.load(options.fsroot, ClientState.fingerprint(options, "0a1b2c3d")));
+
+        options.executors--;
+        options.labels.add("docker");
+        assertNull(ClientState.load(options.fsroot, ClientState.fingerprint(options, "0a1b2c3d")));
+    }
+
+    @Test
+    public void should_ignore_state_for_another_client_id() throws IOException {
+        Options options = givenOptions();
+        new ClientState("agent-0a1b2c3d", "secret", null, null, null)
+                .store(options.fsroot, ClientState.fingerprint(options, "0a1b2c3d"));
+
+        assertNull(ClientState.load(options.fsroot, ClientState.fingerprint(options, "4e5f6a7b")));
+    }
+
+    private Options givenOptions() throws IOException {
+        return givenOptions(temporaryFolder.newFolder());
+    }
+
+    private static Options givenOptions(File fsroot) {
+        Options options = new Options();
+        options.url = "http://localhost:8080/";
+        options.name = "agent";
+        options.executors = 2;
+        options.labels.add("linux");
+        options.fsroot = fsroot;
+        options.keepDisconnectedClients = true;
+        return options;
+    }
+}
@@ -5,6 +5,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertThrows;
 
 import java.net.URL;
+import java.time.Duration;
 import org.junit.Test;
 
 public class ClientTest {
@@ -53,6 +54,16 @@ public class ClientTest {
         runAndVerify(options, "Exited with status 1 after 750 seconds");
     }
 
+    @Test
+    public void should_follow_retry_after_from_controller() {
+        Options options = givenBackOff(RetryBackOffStrategy.EXPONENTIAL);
+        options.retry = 4;
+        SwarmClient swarmClient = new DummySwarmClient(options, Duration.ofSeconds(45));
+        IllegalStateException thrown =
+                assertThrows(IllegalStateException.class, () -> Client.run(swarmClient, options));
+        assertThat(thrown.getMessage(), containsString("Exited with status 1 after 135 seconds"));
+    }
+
     private Options givenBackOff(RetryBackOffStrategy retryBackOffStrategy) {
         Options options = new Options();
         options.url = "http://localhost:8080";
@@ -72,15 +83,21 @@ public class ClientTest {
 
     private static class DummySwarmClient extends SwarmClient {
 
+        private final Duration retryAfter;
         private int totalWaitTime;
 
         DummySwarmClient(Options options) {
+            this(options, null);
+        }
+
+        DummySwarmClient(Options options, Duration retryAfter) {
             super(options);
+            this.retryAfter = retryAfter;
         }
 
         @Override
         protected void createSwarmAgent(URL url) throws RetryException {
-            throw new RetryException("try again");
+            throw new RetryException("try again", retryAfter);
         }
 
         @Override
@@ -0,0 +1,52 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LabelFileWatcherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void should_stop_waiting_while_sibling_file_keeps_changing() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        Path sibling = directory.resolve("heartbeat");
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                    Files.writeString(sibling, Integer.toString(i), StandardCharsets.UTF_8);
+                    Thread.sleep(10);
+                }
+            } catch (Exception e) {
+                // stopped
+            }
+        });
+
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(
+                    watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            writer.start();
+
+            long started = System.nanoTime();
+            LabelFileWatcher.waitForChange(watchService, 30_000, 500);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            assertTrue("waited " + elapsed + " ms", elapsed < 10_000);
+        } finally {
+            writer.interrupt();
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LabelSourceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void should_merge_fragments_of_directory() throws IOException {
+        Path directory = temporaryFolder.newFolder().toPath();
+        Files.writeString(directory.resolve("inventory"), "rack-1 zone-a\n", StandardCharsets.UTF_8);
+        Files.writeString(directory.resolve("team"), "team-build zone-a", StandardCharsets.UTF_8);
+        Files.writeString(directory.resolve(".hidden"), "hidden", StandardCharsets.UTF_8);
+
+        DirectoryLabelSource source = new DirectoryLabelSource(directory);
+        assertEquals(Set.of("rack-1", "zone-a", "team-build"), source.getLabels());
+
+        Files.delete(directory.resolve("team"));
+        Files.writeString(directory.resolve("owner"), "team-test", StandardCharsets.UTF_8);
+        assertEquals(Set.of("rack-1", "zone-a", "team-test"), source.getLabels());
+    }
+
+    @Test
+    public void should_keep_labels_of_last_successful_command() throws IOException {
+        Assume.assumeFalse(System.getProperty("os.name").toLowerCase(Locale.ENGLISH).startsWith("windows"));
+
+        Path labels = temporaryFolder.newFile().toPath();
+        Files.writeString(labels, "foo\nbar\n", StandardCharsets.UTF_8);
+
+        CommandLabelSource source = new CommandLabelSource("cat '" + labels + "'", Duration.ZERO);
+        assertEquals(Set.of("foo", "bar"), source.getLabels());
+
+        Files.writeString(labels, "baz", StandardCharsets.UTF_8);
+        assertEquals(Set.of("baz"), source.getLabels());
+
+        Files.delete(labels);
+        assertEquals(Set.of("baz"), source.getLabels());
+    }
+
+    @Test
+    public void should_parse_labels() {
+        assertEquals(Set.of("a", "b"), LabelSource.parseLabels("\n a\tb  a \n"));
+        assertEquals(Set.of(), LabelSource.parseLabels(" "));
+    }
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Counter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class MetricsPusherTest {
+
+    @Test
+    public void should_group_by_agent() {
+        assertEquals(
+                URI.create("http://localhost:9091/metrics/job/swarm/instance/agent%201"),
+                MetricsPusher.Pushgateway.groupingUri("http://localhost:9091/", "agent 1"));
+        assertEquals(
+                URI.create("http://localhost:9091/metrics/job/ci"),
+                MetricsPusher.Pushgateway.groupingUri("http://localhost:9091/metrics/job/ci", "agent"));
+    }
+
+    @Test
+    public void should_push_to_pushgateway() throws IOException, InterruptedException {
+        BlockingQueue<String> pushes = new ArrayBlockingQueue<>(10);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                pushes.add(exchange.getRequestMethod() + " " + exchange.getRequestURI() + "\n"
+                        + new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            Options options = new Options();
+            options.name = "agent";
+            options.metricsPushUrl = "http://localhost:" + server.getAddress().getPort();
+            options.metricsPushFormat = MetricsPushFormat.PUSHGATEWAY;
+            MetricsPusher pusher = MetricsPusher.create(options);
+            Counter.builder("swarm.test").register(pusher.getRegistry()).increment();
+
+            pusher.stop();
+            String push = pushes.poll(10, TimeUnit.SECONDS);
+            assertTrue(push, push.startsWith("PUT /metrics/job/swarm/instance/agent\n"));
+            assertTrue(push, push.contains("swarm_test_total 1.0"));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+public class ProbeLabelSourceTest {
+
+    @Test
+    public void should_parse_probes() {
+        assertEquals(
+                EnumSet.of(CapabilityProbe.CORES, CapabilityProbe.DISK),
+                ProbeLabelSource.parseProbes("cores, DISK"));
+        assertEquals(EnumSet.noneOf(CapabilityProbe.class), ProbeLabelSource.parseProbes(null));
+        assertThrows(IllegalArgumentException.class, () -> ProbeLabelSource.parseProbes("gpus"));
+    }
+
+    @Test
+    public void should_parse_buckets() {
+        Map<CapabilityProbe, long[]> buckets = ProbeLabelSource.parseBuckets(Map.of("memory", "32, 8,16"));
+        assertArrayEquals(new long[] {8, 16, 32}, buckets.get(CapabilityProbe.MEMORY));
+        assertThrows(
+                IllegalArgumentException.class, () -> ProbeLabelSource.parseBuckets(Map.of("memory", "lots")));
+        assertThrows(
+                IllegalArgumentException.class, () -> ProbeLabelSource.parseBuckets(Map.of("fstype", "1,2")));
+    }
+
+    @Test
+    public void should_put_cores_into_buckets() throws IOException {
+        Options options = new Options();
+        int cores = Runtime.getRuntime().availableProcessors();
+        assertEquals("cores-1", CapabilityProbe.CORES.probe(options, new long[] {1}));
+        assertNull(CapabilityProbe.CORES.probe(options, new long[] {cores + 1L}));
+        assertTrue(CapabilityProbe.CORES.probe(options, new long[0]).matches("cores-\\d+"));
+    }
+
+    @Test
+    public void should_probe_file_system() {
+        Options options = new Options();
+        options.capabilityProbes = "disk,fstype";
+        Set<String> labels = new ProbeLabelSource(options, Duration.ofSeconds(60)).getLabels();
+        assertEquals(2, labels.size());
+        assertTrue(labels.stream().anyMatch(label -> label.matches("disk-free-\\d+g")));
+        assertTrue(labels.stream().anyMatch(label -> label.startsWith("fs-")));
+    }
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrometheusServerTest {
+
+    private PrometheusServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @Before
+    public void startServer() throws IOException {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Counter.builder("swarm.test").register(registry).increment();
+        server = new PrometheusServer(0, registry);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void should_serve_text_format() throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertEquals(PrometheusServer.TEXT_CONTENT_TYPE, response.headers().firstValue("Content-Type").orElse(null));
+        assertTrue(response.body().contains("swarm_test_total 1.0"));
+    }
+
+    @Test
+    public void should_serve_openmetrics_compressed() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(
+                request().header("Accept", "application/openmetrics-text; version=1.0.0")
+                        .header("Accept-Encoding", "gzip")
+                        .build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals(200, response.statusCode());
+        assertEquals(
+                PrometheusServer.OPENMETRICS_CONTENT_TYPE,
+                response.headers().firstValue("Content-Type").orElse(null));
+        assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+        String body;
+        try (InputStream in = new GZIPInputStream(response.body())) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(body.contains("swarm_test_total 1.0"));
+        assertTrue(body.endsWith("# EOF\n"));
+    }
+
+    private HttpRequest.Builder request() {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/prometheus"));
+    }
+}
@@ -1,6 +1,7 @@
 package hudson.plugins.swarm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -33,4 +34,33 @@ public class RetryBackOffStrategyTest {
         assertEquals(80, exponential.waitForRetry(3, 10, 100));
         assertEquals(100, exponential.waitForRetry(4, 10, 100));
     }
+
+    @Test
+    public void should_not_overflow_for_exponential_backoff() {
+        assertEquals(100, RetryBackOffStrategy.EXPONENTIAL.waitForRetry(40, 10, 100));
+    }
+
+    @Test
+    public void should_wait_up_to_exponential_interval_for_full_jitter() {
+        RetryBackOffStrategy fullJitter = RetryBackOffStrategy.FULL_JITTER;
+        for (int i = 0; i < 100; i++) {
+            assertBetween(1, 10, fullJitter.waitForRetry(0, 10, 100));
+            assertBetween(1, 40, fullJitter.waitForRetry(2, 10, 100));
+            assertBetween(1, 100, fullJitter.waitForRetry(40, 10, 100));
+        }
+    }
+
+    @Test
+    public void should_wait_up_to_three_times_previous_wait_for_decorrelated_jitter() {
+        RetryBackOffStrategy decorrelatedJitter = RetryBackOffStrategy.DECORRELATED_JITTER;
+        for (int i = 0; i < 100; i++) {
+            assertBetween(10, 30, decorrelatedJitter.waitForRetry(0, 10, 100, 0));
+            assertBetween(10, 60, decorrelatedJitter.waitForRetry(1, 10, 100, 20));
+            assertBetween(10, 100, decorrelatedJitter.waitForRetry(2, 10, 100, 90));
+        }
+    }
+
+    private static void assertBetween(int min, int max, int actual) {
+        assertTrue(actual + " is not between " + min + " and " + max, actual >= min && actual <= max);
+    }
 }
@@ -3,15 +3,31 @@ package hudson.plugins.swarm;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
 import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -36,6 +52,174 @@ public class SwarmClientTest {
         assertNotNull(client);
     }
 
+    @Test
+    public void should_share_http_client() {
+        Options options = new Options();
+        assertSame(SwarmClient.getHttpClient(options), SwarmClient.getHttpClient(options));
+
+        Options http1 = new Options();
+        http1.noHttp2 = true;
+        assertNotSame(SwarmClient.getHttpClient(options), SwarmClient.getHttpClient(http1));
+        assertSame(HttpClient.Version.HTTP_1_1, SwarmClient.getHttpClient(http1).version());
+    }
+
+    @Test
+    public void should_not_split_short_label_lists() {
+        assertEquals(List.of("foo bar "), SwarmClient.labelChunks(" foo  bar\n"));
+        assertTrue(SwarmClient.labelChunks("  ").isEmpty());
+    }
+
+    @Test
+    public void should_split_long_label_lists() {
+        String label = "a".repeat(99);
+        List<String> chunks = SwarmClient.labelChunks((label + " ").repeat(25));
+        assertEquals(3, chunks.size());
+        assertEquals((label + " ").repeat(11), chunks.get(0));
+        assertEquals((label + " ").repeat(11), chunks.get(1));
+        assertEquals((label + " ").repeat(3), chunks.get(2));
+    }
+
+    @Test
+    public void should_take_reconnect_request_once() {
+        SwarmClient swc = new SwarmClient(new Options());
+        assertFalse(swc.takeReconnectRequest());
+        swc.reconnect();
+        assertTrue(swc.isReconnectRequested());
+        assertTrue(swc.takeReconnectRequest());
+        assertFalse(swc.takeReconnectRequest());
+    }
+
+    @Test
+    public void should_retry_once_with_new_crumb() throws Exception {
+        List<String> sentCrumbs = new CopyOnWriteArrayList<>();
+        AtomicInteger crumbRequests = new AtomicInteger();
+        HttpServer server = startController(n -> 200, crumb -> !"crumb-1".equals(crumb), crumbRequests, sentCrumbs);
+        try {
+            URL url = controllerUrl(server);
+            assertEquals(200, send(url));
+            assertEquals(List.of("crumb-1", "crumb-2"), sentCrumbs);
+
+            // the new crumb is cached
+            assertEquals(200, send(url));
+            assertEquals(2, crumbRequests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void should_cache_missing_crumb() throws Exception {
+        List<String> sentCrumbs = new CopyOnWriteArrayList<>();
+        AtomicInteger crumbRequests = new AtomicInteger();
+        HttpServer server = startController(n -> 404, crumb -> true, crumbRequests, sentCrumbs);
+        try {
+            URL url = controllerUrl(server);
+            assertEquals(200, send(url));
+            assertEquals(200, send(url));
+            assertEquals(1, crumbRequests.get());
+            assertEquals(Arrays.asList(null, null), sentCrumbs);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void should_fetch_crumb_again_after_failure() throws Exception {
+        List<String> sentCrumbs = new CopyOnWriteArrayList<>();
+        AtomicInteger crumbRequests = new AtomicInteger();
+        HttpServer server =
+                startController(n -> n == 1 ? 403 : 200, crumb -> crumb != null, crumbRequests, sentCrumbs);
+        try {
+            URL url = controllerUrl(server);
+            assertEquals(200, send(url));
+            assertEquals(Arrays.asList(null, "crumb-2"), sentCrumbs);
+
+            assertEquals(200, send(url));
+            assertEquals(2, crumbRequests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void should_expire_crumb_after_ttl() throws Exception {
+        URL url = new URL("http://localhost:8080/");
+        SwarmClient.Crumb crumb = new SwarmClient.Crumb(url.toString(), "Jenkins-Crumb", "crumb");
+        assertTrue(crumb.isIssued());
+        assertTrue(crumb.isValidFor(url, crumb.fetched + SwarmClient.CSRF_CRUMB_TTL_NANOS - 1));
+        assertFalse(crumb.isValidFor(url, crumb.fetched + SwarmClient.CSRF_CRUMB_TTL_NANOS));
+        assertFalse(crumb.isValidFor(new URL("http://localhost:8081/"), crumb.fetched));
+
+        SwarmClient.Crumb none = SwarmClient.Crumb.none(url.toString());
+        assertFalse(none.isIssued());
+        assertTrue(none.isValidFor(url, none.fetched + SwarmClient.CSRF_CRUMB_TTL_NANOS - 1));
+        assertFalse(none.isValidFor(url, none.fetched + SwarmClient.CSRF_CRUMB_TTL_NANOS));
+    }
+
+    /**
+     * Starts a controller that issues the crumbs {@code crumb-1}, {@code crumb-2}, and so on when the
+     * status of the request for the crumb is 200, and answers requests to the Swarm plugin with 403
+     * unless it accepts their crumb.
+     */
+    private static HttpServer startController(
+            IntUnaryOperator crumbStatus,
+            Predicate<String> accepts,
+            AtomicInteger crumbRequests,
+            List<String> sentCrumbs)
+            throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/crumbIssuer/", exchange -> {
+            // the shared HTTP client must not reuse connections to servers of earlier tests
+            exchange.getResponseHeaders().set("Connection", "close");
+            int number = crumbRequests.incrementAndGet();
+            int status = crumbStatus.applyAsInt(number);
+            if (status != 200) {
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = ("Jenkins-Crumb:crumb-" + number).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/plugin/swarm/", exchange -> {
+            exchange.getResponseHeaders().set("Connection", "close");
+            String crumb = exchange.getRequestHeaders().getFirst("Jenkins-Crumb");
+            sentCrumbs.add(crumb);
+            exchange.sendResponseHeaders(accepts.test(crumb) ? 200 : 403, -1);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    private static URL controllerUrl(HttpServer server) throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    private static Options crumbOptions() {
+        Options options = new Options();
+        options.noHttp2 = true;
+        return options;
+    }
+
+    private static HttpRequest.Builder request(URL url) {
+        return HttpRequest.newBuilder(URI.create(url + "plugin/swarm/test")).POST(HttpRequest.BodyPublishers.noBody());
+    }
+
+    private static int send(URL url) throws Exception {
+        Options options = crumbOptions();
+        return SwarmClient.sendWithCrumb(
+                        SwarmClient.getHttpClient(options),
+                        request(url),
+                        HttpResponse.BodyHandlers.discarding(),
+                        options,
+                        url)
+                .statusCode();
+    }
+
     /* Below we have a series of tests which make sure that different ways
      * of passing labels (usually via labelsFile) end up with a sane set.
      * Customized options may be provided to test e.g. concatenation of
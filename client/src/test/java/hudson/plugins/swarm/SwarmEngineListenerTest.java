@@ -0,0 +1,62 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class SwarmEngineListenerTest {
+
+    @Test
+    public void should_track_connection_state() {
+        SwarmEngineListener listener = new SwarmEngineListener();
+        assertEquals(SwarmEngineListener.State.CONNECTING, listener.getState());
+        assertFalse(listener.hasConnected());
+
+        listener.status("Handshaking");
+        assertEquals(SwarmEngineListener.State.CONNECTING, listener.getState());
+
+        // without resolving any JAR file through the cache
+        listener.status(SwarmEngineListener.CONNECTED_STATUS);
+        assertEquals(SwarmEngineListener.State.CONNECTED, listener.getState());
+        assertTrue(listener.hasConnected());
+        assertTrue(listener.getConnectDurationNanos() >= 0);
+
+        long connectDuration = listener.getConnectDurationNanos();
+        listener.channelEstablished();
+        assertEquals(connectDuration, listener.getConnectDurationNanos());
+
+        listener.onDisconnect();
+        assertEquals(SwarmEngineListener.State.DISCONNECTED, listener.getState());
+    }
+
+    @Test
+    public void should_track_websocket_connection() {
+        SwarmEngineListener listener = new SwarmEngineListener();
+        listener.status("WebSocket connection open");
+        assertFalse(listener.hasConnected());
+
+        listener.channelEstablished();
+        assertEquals(SwarmEngineListener.State.CONNECTED, listener.getState());
+        long connectDuration = listener.getConnectDurationNanos();
+        listener.channelEstablished();
+        assertEquals(connectDuration, listener.getConnectDurationNanos());
+
+        listener.onDisconnect();
+        listener.channelEstablished();
+        assertEquals(SwarmEngineListener.State.DISCONNECTED, listener.getState());
+        assertTrue(listener.hasConnected());
+    }
+
+    @Test
+    public void should_remember_last_error() {
+        SwarmEngineListener listener = new SwarmEngineListener();
+        IOException error = new IOException("Connection refused");
+        listener.error(error);
+        assertSame(error, listener.getLastError());
+        assertFalse(listener.hasConnected());
+    }
+}
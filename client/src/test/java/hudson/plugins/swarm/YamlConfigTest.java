@@ -4,12 +4,15 @@ import static org.hamcrest.CoreMatchers.allOf;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.stream.Stream;
 import org.junit.Test;
 
@@ -222,6 +225,52 @@ public class YamlConfigTest {
         assertThat(ex.getMessage(), containsString("help"));
     }
 
+    @Test
+    public void agentsOption() throws ConfigurationException {
+        final Options options = loadYaml("url: http://localhost:8080/jenkins\n"
+                + "executors: 2\n"
+                + "labels:\n"
+                + "  - shared\n"
+                + "agents:\n"
+                + "  - name: team-a\n"
+                + "    fsroot: /var/lib/swarm/team-a\n"
+                + "  - name: team-b\n"
+                + "    executors: 4\n"
+                + "    fsroot: /var/lib/swarm/team-b\n"
+                + "    labels:\n"
+                + "      - team-b\n");
+        assertThat(options.agents.size(), equalTo(2));
+
+        final Options teamA = options.agents.get(0).applyTo(options);
+        assertThat(teamA.url, equalTo("http://localhost:8080/jenkins"));
+        assertThat(teamA.name, equalTo("team-a"));
+        assertThat(teamA.executors, equalTo(2));
+        assertThat(teamA.labels, equalTo(List.of("shared")));
+        assertThat(teamA.fsroot, equalTo(new File("/var/lib/swarm/team-a")));
+
+        final Options teamB = options.agents.get(1).applyTo(options);
+        assertThat(teamB.name, equalTo("team-b"));
+        assertThat(teamB.executors, equalTo(4));
+        assertThat(teamB.labels, equalTo(List.of("team-b")));
+        assertThat(teamB.agents, nullValue());
+    }
+
+    @Test
+    public void failsOnAgentsSharingNameOrFsroot() {
+        Throwable ex = assertThrows(
+                ConfigurationException.class,
+                () -> loadYaml("url: ignore\nagents:\n  - name: a\n    fsroot: a\n  - name: a\n    fsroot: b\n"));
+        assertThat(ex.getMessage(), containsString("more than once"));
+
+        ex = assertThrows(
+                ConfigurationException.class, () -> loadYaml("url: ignore\nagents:\n  - name: a\n  - name: b\n"));
+        assertThat(ex.getMessage(), containsString("fsroot"));
+
+        ex = assertThrows(
+                ConfigurationException.class, () -> loadYaml("url: ignore\nname: x\nagents:\n  - name: a\n"));
+        assertThat(ex.getMessage(), allOf(containsString("name"), containsString("agents")));
+    }
+
     private Options loadYaml(String yamlString) throws ConfigurationException {
         return new YamlConfig().loadOptions(new ByteArrayInputStream(yamlString.getBytes(StandardCharsets.UTF_8)));
     }
@@ -0,0 +1,183 @@
+package hudson.plugins.swarm;
+
+import hudson.model.Node;
+import hudson.model.Queue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Coalesces the addition and removal of Swarm agents.
+ *
+ * <p>Updates submitted within a short window are applied together while holding the queue lock
+ * once, so that a mass reconnect does not contend for the lock once per agent. Each update goes
+ * through {@link Jenkins#addNode} or {@link Jenkins#removeNode}, which only write the configuration
+ * of the affected node and leave changes made by others in the meantime intact. Batches are applied
+ * one at a time, updates in the order they were submitted, and a removal only takes effect if the
+ * node was not replaced in the meantime.
+ */
+final class NodeUpdateBatcher {
+
+    static final NodeUpdateBatcher INSTANCE = new NodeUpdateBatcher(
+            SystemProperties.getLong(NodeUpdateBatcher.class.getName() + ".windowMillis", 100L));
+
+    private final long windowMillis;
+
+    private final List<PendingUpdate> pending = new ArrayList<>();
+    private boolean flushScheduled;
+
+    private final Object applyLock = new Object();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong lastBatchSize = new AtomicLong();
+    private final AtomicLong largestBatchSize = new AtomicLong();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    NodeUpdateBatcher(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /** Adds the node to Jenkins with the next batch. */
+    CompletableFuture<Void> add(Node node) {
+        return submit(List.of(new PendingUpdate(node, true)));
+    }
+
+    /**
+     * Adds the nodes to Jenkins with the same batch.
+     *
+     * @return the future of each node, in the given order
+     */
+    List<CompletableFuture<Void>> addAll(List<? extends Node> nodes) {
+        List<PendingUpdate> updates = new ArrayList<>();
+        for (Node node : nodes) {
+            updates.add(new PendingUpdate(node, true));
+        }
+        submit(updates);
+        return updates.stream().map(update -> update.future).toList();
+    }
+
+    /** Removes the node from Jenkins with the next batch. */
+    CompletableFuture<Void> remove(Node node) {
+        return submit(List.of(new PendingUpdate(node, false)));
+    }
+
+    private CompletableFuture<Void> submit(List<PendingUpdate> updates) {
+        CompletableFuture<Void> future = CompletableFuture.allOf(
+                updates.stream().map(update -> update.future).toArray(CompletableFuture[]::new));
+        if (updates.isEmpty()) {
+            return future;
+        }
+        if (windowMillis <= 0) {
+            apply(updates);
+            return future;
+        }
+
+        synchronized (this) {
+            pending.addAll(updates);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                Timer.get().schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return future;
+    }
+
+    void flush() {
+        List<PendingUpdate> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            flushScheduled = false;
+        }
+        if (!batch.isEmpty()) {
+            apply(batch);
+        }
+    }
+
+    private void apply(List<PendingUpdate> batch) {
+        synchronized (applyLock) {
+            Jenkins jenkins = Jenkins.get();
+            Map<PendingUpdate, Throwable> failures = new HashMap<>();
+            Queue.withLock(() -> {
+                for (PendingUpdate update : batch) {
+                    try {
+                        if (update.add) {
+                            jenkins.addNode(update.node);
+                        } else if (jenkins.getNode(update.node.getNodeName()) == update.node) {
+                            jenkins.removeNode(update.node);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        failures.put(update, e);
+                    }
+                }
+            });
+            for (PendingUpdate update : batch) {
+                Throwable failure = failures.get(update);
+                if (failure == null) {
+                    update.future.complete(null);
+                } else {
+                    update.future.completeExceptionally(failure);
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        batches.incrementAndGet();
+        updates.addAndGet(batch.size());
+        lastBatchSize.set(batch.size());
+        largestBatchSize.accumulateAndGet(batch.size(), Math::max);
+        for (PendingUpdate update : batch) {
+            long latency = TimeUnit.NANOSECONDS.toMillis(now - update.submitted);
+            totalLatencyMillis.addAndGet(latency);
+            maxLatencyMillis.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getUpdates() {
+        return updates.get();
+    }
+
+    long getLastBatchSize() {
+        return lastBatchSize.get();
+    }
+
+    long getLargestBatchSize() {
+        return largestBatchSize.get();
+    }
+
+    /** The average time from submitting an update until it was applied. */
+    long getAverageLatencyMillis() {
+        long count = updates.get();
+        return count == 0 ? 0 : totalLatencyMillis.get() / count;
+    }
+
+    long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    private static final class PendingUpdate {
+        final Node node;
+        final boolean add;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingUpdate(Node node, boolean add) {
+            this.node = node;
+            this.add = add;
+        }
+    }
+}
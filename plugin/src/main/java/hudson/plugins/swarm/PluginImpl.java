@@ -3,10 +3,12 @@ package hudson.plugins.swarm;
 import hudson.ExtensionList;
 import hudson.Functions;
 import hudson.Plugin;
+import hudson.TcpSlaveAgentListener;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Node;
+import hudson.model.Slave;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
 import hudson.tools.ToolDescriptor;
@@ -15,15 +17,29 @@ import hudson.tools.ToolLocationNodeProperty;
 import hudson.tools.ToolLocationNodeProperty.ToolLocation;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 import jenkins.slaves.JnlpAgentReceiver;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
@@ -37,6 +53,19 @@ import org.kohsuke.stapler.verb.POST;
  */
 public class PluginImpl extends Plugin {
 
+    private static final Logger LOGGER = Logger.getLogger(PluginImpl.class.getName());
+
+    /** The largest batch accepted by {@link #doCreateSlaves}. */
+    private static final int MAX_AGENTS_PER_REQUEST =
+            SystemProperties.getInteger(PluginImpl.class.getName() + ".maxAgentsPerRequest", 1000);
+
+    /** Limits how many registrations are served at once, so that reconnect storms cannot exhaust the HTTP threads. */
+    private static final RegistrationThrottle REGISTRATIONS = new RegistrationThrottle(
+            SystemProperties.getInteger(PluginImpl.class.getName() + ".maxConcurrentRegistrations", 8),
+            SystemProperties.getInteger(PluginImpl.class.getName() + ".maxQueuedRegistrations", 64),
+            SystemProperties.getLong(PluginImpl.class.getName() + ".maxRegistrationWaitMillis", 10_000L),
+            SystemProperties.getInteger(PluginImpl.class.getName() + ".registrationRetryAfterSeconds", 10));
+
     private Node getNodeByName(String name, StaplerResponse2 rsp) throws IOException {
         Jenkins jenkins = Jenkins.get();
         Node node = jenkins.getNode(name);
@@ -83,10 +112,12 @@ public class PluginImpl extends Plugin {
 
         node.checkPermission(Computer.CONFIGURE);
 
-        LinkedHashSet<String> currentLabels = stringToSet(node.getLabelString());
-        LinkedHashSet<String> labelsToAdd = stringToSet(labels);
-        currentLabels.addAll(labelsToAdd);
-        node.setLabelString(setToString(currentLabels));
+        synchronized (node) {
+            LinkedHashSet<String> currentLabels = stringToSet(node.getLabelString());
+            LinkedHashSet<String> labelsToAdd = stringToSet(labels);
+            currentLabels.addAll(labelsToAdd);
+            node.setLabelString(setToString(currentLabels));
+        }
 
         normalResponse(req, rsp, node.getLabelString());
     }
@@ -96,7 +127,13 @@ public class PluginImpl extends Plugin {
     }
 
     private static LinkedHashSet<String> stringToSet(String labels) {
-        return new LinkedHashSet<>(List.of(labels.split("\\s+")));
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (String label : Util.fixNull(labels).split("\\s+")) {
+            if (!label.isEmpty()) {
+                result.add(label);
+            }
+        }
+        return result;
     }
 
     /** Remove labels from an agent. */
@@ -111,10 +148,46 @@ public class PluginImpl extends Plugin {
 
         node.checkPermission(Computer.CONFIGURE);
 
-        LinkedHashSet<String> currentLabels = stringToSet(node.getLabelString());
-        LinkedHashSet<String> labelsToRemove = stringToSet(labels);
-        currentLabels.removeAll(labelsToRemove);
-        node.setLabelString(setToString(currentLabels));
+        synchronized (node) {
+            LinkedHashSet<String> currentLabels = stringToSet(node.getLabelString());
+            LinkedHashSet<String> labelsToRemove = stringToSet(labels);
+            currentLabels.removeAll(labelsToRemove);
+            node.setLabelString(setToString(currentLabels));
+        }
+
+        normalResponse(req, rsp, node.getLabelString());
+    }
+
+    /**
+     * Replace the labels of an agent.
+     *
+     * <p>The request body holds the complete whitespace-separated list of labels the agent should
+     * have. Only the difference to the current labels is applied, with a single update of the
+     * node. The {@code swarm} label is always kept.
+     */
+    @POST
+    public void doSetSlaveLabels(StaplerRequest2 req, StaplerResponse2 rsp, @QueryParameter String name)
+            throws IOException {
+        Node node = getNodeByName(name, rsp);
+        if (node == null) {
+            return;
+        }
+
+        node.checkPermission(Computer.CONFIGURE);
+
+        LinkedHashSet<String> desiredLabels = new LinkedHashSet<>();
+        desiredLabels.add("swarm");
+        desiredLabels.addAll(stringToSet(IOUtils.toString(req.getReader())));
+
+        synchronized (node) {
+            LinkedHashSet<String> currentLabels = stringToSet(node.getLabelString());
+            LinkedHashSet<String> newLabels = new LinkedHashSet<>(currentLabels);
+            newLabels.retainAll(desiredLabels);
+            newLabels.addAll(desiredLabels);
+            if (!newLabels.equals(currentLabels)) {
+                node.setLabelString(setToString(newLabels));
+            }
+        }
 
         normalResponse(req, rsp, node.getLabelString());
     }
@@ -139,80 +212,352 @@ public class PluginImpl extends Plugin {
         jenkins.checkPermission(Computer.CREATE);
         jenkins.checkPermission(Computer.CONNECT);
 
+        if (!admitRegistration(rsp)) {
+            return;
+        }
+
+        SwarmAgentRequest request = new SwarmAgentRequest(
+                name,
+                description,
+                executors,
+                remoteFsRoot,
+                labels,
+                mode,
+                hash,
+                deleteExistingClients,
+                keepDisconnectedClients,
+                req.getParameterValues("toolLocation"),
+                req.getParameterValues("environmentVariable"));
+
+        try {
+            registerAgent(request, req, rsp);
+        } finally {
+            REGISTRATIONS.release();
+        }
+    }
+
+    /**
+     * Add a new Swarm agent, reading its parameters from the request body.
+     *
+     * <p>The body is a properties file with the same keys as the {@code createSlave} parameters. Tool
+     * locations and environment variables are given as {@code toolLocation.<key>} and {@code
+     * environmentVariable.<key>} entries. Unlike the query string of {@code createSlave}, the body
+     * is not limited in size, so any agent registers with a single request. The response is the
+     * same as for {@code createSlave}.
+     */
+    @POST
+    public void doRegisterSlave(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Jenkins jenkins = Jenkins.get();
+
+        jenkins.checkPermission(Computer.CREATE);
+        jenkins.checkPermission(Computer.CONNECT);
+
+        if (!admitRegistration(rsp)) {
+            return;
+        }
+
+        try {
+            SwarmAgentRequest request;
+            try {
+                Properties props = new Properties();
+                props.load(req.getReader());
+                request = SwarmAgentRequest.fromProperties(props);
+            } catch (IllegalArgumentException e) {
+                rsp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                rsp.setContentType("text/plain; UTF-8");
+                rsp.getWriter().printf("Invalid registration request: %s%n", e.getMessage());
+                return;
+            }
+            registerAgent(request, req, rsp);
+        } finally {
+            REGISTRATIONS.release();
+        }
+    }
+
+    private void registerAgent(SwarmAgentRequest request, StaplerRequest2 req, StaplerResponse2 rsp)
+            throws IOException {
+        try {
+            Slave agent = prepareAgent(request, req.getRemoteHost());
+            IOException failure = addNodes(List.of(agent)).get(agent.getNodeName());
+            if (failure != null) {
+                throw failure;
+            }
+
+            rsp.setContentType("text/plain; charset=iso-8859-1");
+            try (OutputStream outputStream = rsp.getOutputStream()) {
+                Properties props = new Properties();
+                props.put("name", agent.getNodeName());
+                props.put("secret", JnlpAgentReceiver.SLAVE_SECRET.mac(agent.getNodeName()));
+                putEndpoint(props);
+                props.store(outputStream, "");
+            }
+        } catch (RegistrationException e) {
+            rsp.setStatus(e.status);
+            rsp.setContentType("text/plain; UTF-8");
+            rsp.getWriter().printf("%s%n", e.getMessage());
+        } catch (FormException e) {
+            Functions.printStackTrace(e, System.err);
+        }
+    }
+
+    /**
+     * Adds what Remoting would otherwise request from {@code tcpSlaveAgentListener} before
+     * connecting, so that the agent can connect to the TCP agent listener directly.
+     */
+    private static void putEndpoint(Properties props) {
+        Jenkins jenkins = Jenkins.get();
+        TcpSlaveAgentListener listener = jenkins.getTcpSlaveAgentListener();
+        if (listener == null) {
+            return;
+        }
+        String host = listener.getAdvertisedHost();
+        String identity = listener.getIdentityPublicKey();
+        if (host == null || identity == null) {
+            return;
+        }
+        props.put("tcpPort", Integer.toString(listener.getAdvertisedPort()));
+        props.put("host", host);
+        props.put("instanceIdentity", identity);
+        props.put("protocols", String.join(",", jenkins.getAgentProtocols()));
+    }
+
+    /**
+     * Add a batch of new Swarm agents.
+     *
+     * <p>The request body is a JSON object whose {@code agents} array holds one descriptor per agent,
+     * using the same field names as the {@code createSlave} parameters. Tool locations and
+     * environment variables are given as JSON objects. All agents of the batch are added to the
+     * controller in the same update of the node list.
+     *
+     * <p>The response holds the name and secret of every created agent, or the status and reason
+     * of the failure, in the order of the request.
+     */
+    @POST
+    public void doCreateSlaves(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Jenkins jenkins = Jenkins.get();
+
+        jenkins.checkPermission(Computer.CREATE);
+        jenkins.checkPermission(Computer.CONNECT);
+
+        if (!admitRegistration(rsp)) {
+            return;
+        }
+
+        try {
+            createSlaves(req, rsp);
+        } finally {
+            REGISTRATIONS.release();
+        }
+    }
+
+    private void createSlaves(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        JSONArray descriptors;
+        try {
+            descriptors = JSONObject.fromObject(IOUtils.toString(req.getReader())).getJSONArray("agents");
+        } catch (JSONException e) {
+            rsp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            rsp.setContentType("text/plain; UTF-8");
+            rsp.getWriter().printf("Invalid bulk registration request: %s%n", e.getMessage());
+            return;
+        }
+
+        if (descriptors.size() > MAX_AGENTS_PER_REQUEST) {
+            rsp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            rsp.setContentType("text/plain; UTF-8");
+            rsp.getWriter().printf("At most %d agents can be created in one request.%n", MAX_AGENTS_PER_REQUEST);
+            return;
+        }
+
+        JSONObject[] results = new JSONObject[descriptors.size()];
+        Map<String, Integer> indices = new LinkedHashMap<>();
+        List<Slave> agents = new ArrayList<>();
+        for (int i = 0; i < descriptors.size(); i++) {
+            String requestedName = null;
+            try {
+                SwarmAgentRequest request = SwarmAgentRequest.fromJson(descriptors.getJSONObject(i));
+                requestedName = request.name;
+                Slave agent = prepareAgent(request, req.getRemoteHost());
+                if (indices.containsKey(agent.getNodeName())) {
+                    throw new RegistrationException(
+                            HttpServletResponse.SC_CONFLICT,
+                            String.format("Agent \"%s\" is requested more than once.", agent.getNodeName()));
+                }
+                indices.put(agent.getNodeName(), i);
+                agents.add(agent);
+            } catch (RegistrationException e) {
+                results[i] = failure(requestedName, e.status, e.getMessage());
+            } catch (JSONException | IllegalArgumentException e) {
+                results[i] = failure(requestedName, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            } catch (FormException | RuntimeException e) {
+                results[i] = failure(requestedName, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            }
+        }
+
+        Map<String, IOException> failures = addNodes(agents);
+        for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+            String agentName = entry.getKey();
+            IOException e = failures.get(agentName);
+            if (e == null) {
+                JSONObject result = new JSONObject();
+                result.put("name", agentName);
+                result.put("secret", JnlpAgentReceiver.SLAVE_SECRET.mac(agentName));
+                results[entry.getValue()] = result;
+            } else {
+                LOGGER.log(Level.WARNING, "Failed to add agent " + agentName, e);
+                results[entry.getValue()] =
+                        failure(agentName, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            }
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("agents", JSONArray.fromObject(results));
+        rsp.setContentType("application/json; charset=UTF-8");
+        try (Writer writer = rsp.getWriter()) {
+            writer.write(response.toString());
+        }
+    }
+
+    /**
+     * Waits for the registration throttle. If the registration is rejected, answers with a
+     * {@code Retry-After} hint and returns {@code false}.
+     */
+    private static boolean admitRegistration(StaplerResponse2 rsp) throws IOException {
+        try {
+            if (REGISTRATIONS.acquire()) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        rsp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        rsp.setHeader("Retry-After", Integer.toString(REGISTRATIONS.getRetryAfterSeconds()));
+        rsp.setContentType("text/plain; UTF-8");
+        rsp.getWriter().println("Too many concurrent agent registrations. Try again later.");
+        return false;
+    }
+
+    /** Reports the registration and node update counters as {@code key=value} lines. */
+    @SuppressWarnings("lgtm[jenkins/csrf]")
+    public void doStatistics(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+
+        rsp.setContentType("text/plain; charset=UTF-8");
+        try (PrintWriter writer = rsp.getWriter()) {
+            writer.printf("registrations.admitted=%d%n", REGISTRATIONS.getAdmitted());
+            writer.printf("registrations.queued=%d%n", REGISTRATIONS.getQueued());
+            writer.printf("registrations.rejected=%d%n", REGISTRATIONS.getRejected());
+            writer.printf("registrations.active=%d%n", REGISTRATIONS.getActive());
+            writer.printf("registrations.waiting=%d%n", REGISTRATIONS.getWaiting());
+
+            NodeUpdateBatcher nodeUpdates = NodeUpdateBatcher.INSTANCE;
+            writer.printf("nodeUpdates.batches=%d%n", nodeUpdates.getBatches());
+            writer.printf("nodeUpdates.updates=%d%n", nodeUpdates.getUpdates());
+            writer.printf("nodeUpdates.lastBatchSize=%d%n", nodeUpdates.getLastBatchSize());
+            writer.printf("nodeUpdates.largestBatchSize=%d%n", nodeUpdates.getLargestBatchSize());
+            writer.printf("nodeUpdates.averageLatencyMillis=%d%n", nodeUpdates.getAverageLatencyMillis());
+            writer.printf("nodeUpdates.maxLatencyMillis=%d%n", nodeUpdates.getMaxLatencyMillis());
+        }
+    }
+
+    private static JSONObject failure(String name, int status, String message) {
+        JSONObject result = new JSONObject();
+        if (name != null) {
+            result.put("name", name);
+        }
+        result.put("status", status);
+        result.put("error", message);
+        return result;
+    }
+
+    /**
+     * Validates a registration and creates the agent, without adding it to Jenkins yet.
+     *
+     * @throws RegistrationException if the agent conflicts with an existing one
+     */
+    private static Slave prepareAgent(SwarmAgentRequest request, String remoteHost)
+            throws RegistrationException, IOException, FormException {
+        Jenkins jenkins = Jenkins.get();
+
         List<NodeProperty<Node>> nodeProperties = new ArrayList<>();
 
-        String[] toolLocations = req.getParameterValues("toolLocation");
-        if (!ArrayUtils.isEmpty(toolLocations)) {
-            List<ToolLocation> parsedToolLocations = parseToolLocations(toolLocations);
+        if (!ArrayUtils.isEmpty(request.toolLocations)) {
+            List<ToolLocation> parsedToolLocations = parseToolLocations(request.toolLocations);
             nodeProperties.add(new ToolLocationNodeProperty(parsedToolLocations));
         }
 
-        String[] environmentVariables = req.getParameterValues("environmentVariable");
-        if (!ArrayUtils.isEmpty(environmentVariables)) {
+        if (!ArrayUtils.isEmpty(request.environmentVariables)) {
             List<EnvironmentVariablesNodeProperty.Entry> parsedEnvironmentVariables =
-                    parseEnvironmentVariables(environmentVariables);
+                    parseEnvironmentVariables(request.environmentVariables);
             nodeProperties.add(new EnvironmentVariablesNodeProperty(parsedEnvironmentVariables));
         }
 
         // We use the existance of the node property itself as the boolean flag
-        if (keepDisconnectedClients) {
+        if (request.keepDisconnectedClients) {
             nodeProperties.add(new KeepSwarmClientNodeProperty());
         }
 
-        if (hash == null && jenkins.getNode(name) != null && !deleteExistingClients) {
+        String name = request.name;
+        if (request.hash == null && jenkins.getNode(name) != null && !request.deleteExistingClients) {
             /*
              * This is a legacy client. They won't be able to pick up the new name, so throw them
              * away. Perhaps they can find another controller to connect to.
              */
-            rsp.setStatus(HttpServletResponse.SC_CONFLICT);
-            rsp.setContentType("text/plain; UTF-8");
-            rsp.getWriter().printf("Agent \"%s\" already exists.%n", name);
-            return;
+            throw new RegistrationException(
+                    HttpServletResponse.SC_CONFLICT, String.format("Agent \"%s\" already exists.", name));
         }
 
-        if (hash != null) {
+        if (request.hash != null) {
             /*
              * Try to make the name unique. Swarm clients are often replicated VMs, and they may
              * have the same name.
              */
-            name = name + '-' + hash;
+            name = name + '-' + request.hash;
         }
 
         // Check for existing connections.
-        if (!deleteExistingClients
-                && ExtensionList.lookupFirst(SwarmSlaveFactory.class).haveExistingConnection(name)) {
-            rsp.setStatus(HttpServletResponse.SC_CONFLICT);
-            rsp.setContentType("text/plain; UTF-8");
-            rsp.getWriter().printf("Agent \"%s\" is already created and on-line.%n", name);
-            return;
+        SwarmSlaveFactory factory = ExtensionList.lookupFirst(SwarmSlaveFactory.class);
+        if (!request.deleteExistingClients && factory.haveExistingConnection(name)) {
+            throw new RegistrationException(
+                    HttpServletResponse.SC_CONFLICT,
+                    String.format("Agent \"%s\" is already created and on-line.", name));
         }
 
-        try {
-            String nodeDescription = "Swarm agent from " + req.getRemoteHost();
-            if (description != null) {
-                nodeDescription += ": " + description;
-            }
-            var agent = ExtensionList.lookupFirst(SwarmSlaveFactory.class)
-                    .createSlave(
-                            name,
-                            nodeDescription,
-                            remoteFsRoot,
-                            executors,
-                            mode,
-                            "swarm " + Util.fixNull(labels),
-                            nodeProperties);
-            jenkins.addNode(agent);
+        String nodeDescription = "Swarm agent from " + remoteHost;
+        if (request.description != null) {
+            nodeDescription += ": " + request.description;
+        }
+        return factory.createSlave(
+                name,
+                nodeDescription,
+                request.remoteFsRoot,
+                request.executors,
+                request.mode,
+                "swarm " + Util.fixNull(request.labels),
+                nodeProperties);
+    }
 
-            rsp.setContentType("text/plain; charset=iso-8859-1");
-            try (OutputStream outputStream = rsp.getOutputStream()) {
-                Properties props = new Properties();
-                props.put("name", name);
-                props.put("secret", JnlpAgentReceiver.SLAVE_SECRET.mac(name));
-                props.store(outputStream, "");
+    /**
+     * Adds the given agents with one batch of the {@link NodeUpdateBatcher} and waits until they
+     * have been added, so that the agents of one request are added under the same queue lock.
+     *
+     * @return the agents that could not be added, keyed by name
+     */
+    private static Map<String, IOException> addNodes(List<? extends Node> nodes) {
+        List<CompletableFuture<Void>> futures = NodeUpdateBatcher.INSTANCE.addAll(nodes);
+        Map<String, IOException> failures = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            String name = nodes.get(i).getNodeName();
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.put(name, new InterruptedIOException("Interrupted while adding the agent"));
+            } catch (ExecutionException e) {
+                failures.put(name, e.getCause() instanceof IOException ioe ? ioe : new IOException(e.getCause()));
             }
-        } catch (FormException e) {
-            Functions.printStackTrace(e, System.err);
         }
+        return failures;
     }
 
     private static List<ToolLocation> parseToolLocations(String[] toolLocations) {
@@ -266,4 +611,17 @@ public class PluginImpl extends Plugin {
 
         return result;
     }
+
+    /** A registration that was refused, together with the HTTP status to report. */
+    private static final class RegistrationException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        RegistrationException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
 }
@@ -0,0 +1,99 @@
+package hudson.plugins.swarm;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of agent registrations the controller serves at the same time.
+ *
+ * <p>When every Swarm client reconnects at once, for example after a controller restart,
+ * registrations beyond the concurrency limit wait in a bounded queue. Once the queue is full, or a
+ * registration has waited too long, it is turned away with a retry delay instead of holding on to
+ * a request-handling thread.
+ */
+final class RegistrationThrottle {
+
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final int retryAfterSeconds;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    RegistrationThrottle(int maxConcurrent, int maxQueued, long maxWaitMillis, int retryAfterSeconds) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.permits = new Semaphore(this.maxConcurrent, true);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+    }
+
+    /**
+     * Waits for a registration slot. Every successful call must be paired with {@link #release()}.
+     *
+     * @return {@code false} if the registration was rejected
+     */
+    boolean acquire() throws InterruptedException {
+        if (permits.tryAcquire()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+
+        if (waiting.incrementAndGet() > maxQueued) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        queued.incrementAndGet();
+        try {
+            if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+            rejected.incrementAndGet();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * The delay to send in the {@code Retry-After} header of a rejected registration. It is spread
+     * over twice the configured delay so that rejected clients do not come back in lockstep.
+     */
+    int getRetryAfterSeconds() {
+        return retryAfterSeconds + ThreadLocalRandom.current().nextInt(retryAfterSeconds + 1);
+    }
+
+    long getAdmitted() {
+        return admitted.get();
+    }
+
+    long getQueued() {
+        return queued.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    int getWaiting() {
+        return waiting.get();
+    }
+}
@@ -0,0 +1,145 @@
+package hudson.plugins.swarm;
+
+import hudson.Util;
+import hudson.model.Node;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import net.sf.json.JSONObject;
+
+/**
+ * The parameters a Swarm client sends when it asks the controller to create an agent.
+ *
+ * <p>Tool locations and environment variables are kept in the {@code key:value} form used by the
+ * {@code createSlave} query parameters.
+ */
+final class SwarmAgentRequest {
+
+    final String name;
+    final String description;
+    final int executors;
+    final String remoteFsRoot;
+    final String labels;
+    final Node.Mode mode;
+    final String hash;
+    final boolean deleteExistingClients;
+    final boolean keepDisconnectedClients;
+    final String[] toolLocations;
+    final String[] environmentVariables;
+
+    SwarmAgentRequest(
+            String name,
+            String description,
+            int executors,
+            String remoteFsRoot,
+            String labels,
+            Node.Mode mode,
+            String hash,
+            boolean deleteExistingClients,
+            boolean keepDisconnectedClients,
+            String[] toolLocations,
+            String[] environmentVariables) {
+        this.name = name;
+        this.description = description;
+        this.executors = executors;
+        this.remoteFsRoot = remoteFsRoot;
+        this.labels = labels;
+        this.mode = mode;
+        this.hash = hash;
+        this.deleteExistingClients = deleteExistingClients;
+        this.keepDisconnectedClients = keepDisconnectedClients;
+        this.toolLocations = toolLocations;
+        this.environmentVariables = environmentVariables;
+    }
+
+    /**
+     * Reads a single agent descriptor of a bulk registration request.
+     *
+     * @throws IllegalArgumentException if the descriptor has no name or an unknown mode
+     */
+    static SwarmAgentRequest fromJson(JSONObject json) {
+        String name = Util.fixEmptyAndTrim(json.optString("name"));
+        if (name == null) {
+            throw new IllegalArgumentException("Missing agent name.");
+        }
+        return new SwarmAgentRequest(
+                name,
+                Util.fixEmpty(json.optString("description")),
+                json.optInt("executors", 1),
+                Util.fixEmpty(json.optString("remoteFsRoot")),
+                json.optString("labels"),
+                parseMode(json.optString("mode")),
+                Util.fixEmpty(json.optString("hash")),
+                json.optBoolean("deleteExistingClients"),
+                json.optBoolean("keepDisconnectedClients"),
+                toKeyValues(json.optJSONObject("toolLocations")),
+                toKeyValues(json.optJSONObject("environmentVariables")));
+    }
+
+    /**
+     * Reads the body of a {@code registerSlave} request. Tool locations and environment variables
+     * are given as {@code toolLocation.<key>} and {@code environmentVariable.<key>} properties.
+     *
+     * @throws IllegalArgumentException if the request has no name, an unknown mode, or an invalid
+     *     number of executors
+     */
+    static SwarmAgentRequest fromProperties(Properties props) {
+        String name = Util.fixEmptyAndTrim(props.getProperty("name"));
+        if (name == null) {
+            throw new IllegalArgumentException("Missing agent name.");
+        }
+        int executors;
+        try {
+            executors = Integer.parseInt(props.getProperty("executors", "1").trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number of executors.", e);
+        }
+        return new SwarmAgentRequest(
+                name,
+                Util.fixEmpty(props.getProperty("description")),
+                executors,
+                Util.fixEmpty(props.getProperty("remoteFsRoot")),
+                props.getProperty("labels", ""),
+                parseMode(props.getProperty("mode")),
+                Util.fixEmpty(props.getProperty("hash")),
+                Boolean.parseBoolean(props.getProperty("deleteExistingClients")),
+                Boolean.parseBoolean(props.getProperty("keepDisconnectedClients")),
+                toKeyValues(props, "toolLocation."),
+                toKeyValues(props, "environmentVariable."));
+    }
+
+    static Node.Mode parseMode(String mode) {
+        if (Util.fixEmpty(mode) == null) {
+            return Node.Mode.NORMAL;
+        }
+        try {
+            return Node.Mode.valueOf(mode.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid mode \"" + mode + "\".", e);
+        }
+    }
+
+    private static String[] toKeyValues(JSONObject json) {
+        if (json == null || json.isNullObject()) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (Object entry : json.entrySet()) {
+            Map.Entry<?, ?> keyValue = (Map.Entry<?, ?>) entry;
+            result.add(keyValue.getKey() + ":" + keyValue.getValue());
+        }
+        return result.toArray(new String[0]);
+    }
+
+    private static String[] toKeyValues(Properties props, String prefix) {
+        List<String> result = new ArrayList<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                result.add(key.substring(prefix.length()) + ":" + props.getProperty(key));
+            }
+        }
+        return result.isEmpty() ? null : result.toArray(new String[0]);
+    }
+}
@@ -118,9 +118,9 @@ public class AuthorizationStrategyTest {
         labelsToAdd.add(RandomStringUtils.randomAlphanumeric(350));
 
         Path labelsFile = Files.createTempFile(temporaryFolder.getRoot().toPath(), "labelsFile", ".txt");
+        Files.writeString(labelsFile, encode(labelsToRemove), StandardCharsets.UTF_8);
 
-        Node node = swarmClientRule.createSwarmClient(
-                "-labelsFile", labelsFile.toAbsolutePath().toString(), "-labels", encode(labelsToRemove));
+        Node node = swarmClientRule.createSwarmClient("-labelsFile", labelsFile.toAbsolutePath().toString());
 
         String origLabels = node.getLabelString();
 
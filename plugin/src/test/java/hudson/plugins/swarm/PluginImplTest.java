@@ -0,0 +1,183 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.htmlunit.HttpMethod;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class PluginImplTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void createSlavesInBulk() throws Exception {
+        WebResponse response = post(
+                "createSlaves",
+                "{\"agents\": ["
+                        + "{\"name\": \"bulk-a\", \"executors\": 2, \"labels\": \"foo bar\", \"mode\": \"exclusive\"},"
+                        + "{\"name\": \"bulk-b\", \"hash\": \"1234\","
+                        + " \"environmentVariables\": {\"SWARM_VAR\": \"a:b\"}},"
+                        + "{\"name\": \"bulk-a\"},"
+                        + "{\"executors\": 1}"
+                        + "]}");
+        assertEquals(200, response.getStatusCode());
+
+        JSONArray agents = JSONObject.fromObject(response.getContentAsString()).getJSONArray("agents");
+        assertEquals(4, agents.size());
+
+        assertEquals("bulk-a", agents.getJSONObject(0).getString("name"));
+        assertFalse(agents.getJSONObject(0).getString("secret").isEmpty());
+        assertEquals("bulk-b-1234", agents.getJSONObject(1).getString("name"));
+        assertFalse(agents.getJSONObject(1).getString("secret").isEmpty());
+        assertEquals(409, agents.getJSONObject(2).getInt("status"));
+        assertEquals(400, agents.getJSONObject(3).getInt("status"));
+
+        Node a = j.jenkins.getNode("bulk-a");
+        assertNotNull(a);
+        assertEquals("swarm foo bar", a.getLabelString());
+        assertEquals(2, a.getNumExecutors());
+        assertEquals(Node.Mode.EXCLUSIVE, a.getMode());
+        assertNotNull(j.jenkins.getNode("bulk-b-1234"));
+        assertEquals(2, j.jenkins.getNodes().size());
+    }
+
+    @Test
+    public void createSlavesRejectsMalformedBody() throws Exception {
+        WebResponse response = post("createSlaves", "[not json");
+        assertEquals(400, response.getStatusCode());
+        assertTrue(j.jenkins.getNodes().isEmpty());
+    }
+
+    @Test
+    public void registerSlaveReadsBody() throws Exception {
+        String labels = "label-".repeat(1000).trim();
+        WebResponse response = post(
+                "registerSlave",
+                "text/plain",
+                "name=registered\n"
+                        + "executors=3\n"
+                        + "labels=" + labels + "\n"
+                        + "mode=EXCLUSIVE\n"
+                        + "hash=abcd\n"
+                        + "environmentVariable.SWARM_VAR=a\\:b\n");
+        assertEquals(200, response.getStatusCode());
+
+        Properties props = new Properties();
+        props.load(new StringReader(response.getContentAsString()));
+        assertEquals("registered-abcd", props.getProperty("name"));
+        assertFalse(props.getProperty("secret").isEmpty());
+        assertEquals(
+                Integer.toString(j.jenkins.getTcpSlaveAgentListener().getAdvertisedPort()),
+                props.getProperty("tcpPort"));
+        assertFalse(props.getProperty("instanceIdentity").isEmpty());
+        assertTrue(props.getProperty("protocols").contains("JNLP4-connect"));
+
+        Node node = j.jenkins.getNode("registered-abcd");
+        assertNotNull(node);
+        assertEquals("swarm " + labels, node.getLabelString());
+        assertEquals(3, node.getNumExecutors());
+        assertEquals(Node.Mode.EXCLUSIVE, node.getMode());
+
+        response = post("registerSlave", "text/plain", "executors=1\n");
+        assertEquals(400, response.getStatusCode());
+    }
+
+    @Test
+    public void statisticsReportNodeUpdates() throws Exception {
+        post("createSlaves", "{\"agents\": [{\"name\": \"stats-a\"}, {\"name\": \"stats-b\"}]}");
+
+        String statistics = j.createWebClient()
+                .goTo("plugin/swarm/statistics", "text/plain")
+                .getWebResponse()
+                .getContentAsString();
+        assertTrue(statistics.contains("registrations.admitted="));
+        assertTrue(statistics.contains("nodeUpdates.batches="));
+        assertTrue(statistics.contains("nodeUpdates.largestBatchSize="));
+    }
+
+    @Test
+    public void nodeUpdatesAreAppliedAsOneBatch() throws Exception {
+        NodeUpdateBatcher batcher = new NodeUpdateBatcher(60_000);
+        Node a = new DumbSlave("batch-a", "/tmp/a", new JNLPLauncher());
+        Node b = new DumbSlave("batch-b", "/tmp/b", new JNLPLauncher());
+        Node replacement = new DumbSlave("batch-a", "/tmp/c", new JNLPLauncher());
+
+        CompletableFuture<Void> additions =
+                CompletableFuture.allOf(batcher.addAll(List.of(a, b)).toArray(new CompletableFuture<?>[0]));
+        assertFalse(additions.isDone());
+        batcher.flush();
+        additions.get();
+        assertEquals(1, batcher.getBatches());
+        assertEquals(2, batcher.getLastBatchSize());
+        assertEquals(2, j.jenkins.getNodes().size());
+
+        CompletableFuture<Void> updates =
+                CompletableFuture.allOf(batcher.add(replacement), batcher.remove(a), batcher.remove(b));
+        batcher.flush();
+        updates.get();
+        assertEquals(2, batcher.getBatches());
+        assertEquals(1, j.jenkins.getNodes().size());
+        assertEquals("/tmp/c", ((Slave) j.jenkins.getNode("batch-a")).getRemoteFS());
+    }
+
+    @Test
+    public void nodeUpdatesKeepConcurrentChanges() throws Exception {
+        NodeUpdateBatcher batcher = new NodeUpdateBatcher(60_000);
+        Node swarm = new DumbSlave("batch-swarm", "/tmp/a", new JNLPLauncher());
+        CompletableFuture<Void> addition = batcher.add(swarm);
+        j.jenkins.addNode(new DumbSlave("batch-other", "/tmp/b", new JNLPLauncher()));
+        batcher.flush();
+        addition.get();
+        assertNotNull(j.jenkins.getNode("batch-other"));
+        assertSame(swarm, j.jenkins.getNode("batch-swarm"));
+    }
+
+    @Test
+    public void setSlaveLabelsAppliesDifference() throws Exception {
+        post("createSlaves", "{\"agents\": [{\"name\": \"labels-a\", \"labels\": \"foo bar\"}]}");
+
+        WebResponse response = post("setSlaveLabels?name=labels-a", "text/plain", " bar  baz\n");
+        assertEquals(200, response.getStatusCode());
+        assertEquals("swarm bar baz", j.jenkins.getNode("labels-a").getLabelString());
+
+        response = post("setSlaveLabels?name=labels-a", "text/plain", "");
+        assertEquals(200, response.getStatusCode());
+        assertEquals("swarm", j.jenkins.getNode("labels-a").getLabelString());
+
+        response = post("setSlaveLabels?name=missing", "text/plain", "foo");
+        assertEquals(404, response.getStatusCode());
+    }
+
+    private WebResponse post(String method, String body) throws Exception {
+        return post(method, "application/json", body);
+    }
+
+    private WebResponse post(String method, String contentType, String body) throws Exception {
+        JenkinsRule.WebClient wc = j.createWebClient().withThrowExceptionOnFailingStatusCode(false);
+        WebRequest request = new WebRequest(new URL(j.getURL(), "plugin/swarm/" + method), HttpMethod.POST);
+        request.setAdditionalHeader("Content-Type", contentType);
+        request.setRequestBody(body);
+        wc.addCrumb(request);
+        return wc.getPage(request).getWebResponse();
+    }
+}
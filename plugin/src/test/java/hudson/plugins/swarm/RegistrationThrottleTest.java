@@ -0,0 +1,44 @@
+package hudson.plugins.swarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RegistrationThrottleTest {
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws InterruptedException {
+        RegistrationThrottle throttle = new RegistrationThrottle(1, 0, 0, 10);
+        assertTrue(throttle.acquire());
+        assertFalse(throttle.acquire());
+        assertEquals(1, throttle.getAdmitted());
+        assertEquals(0, throttle.getQueued());
+        assertEquals(1, throttle.getRejected());
+        assertEquals(1, throttle.getActive());
+
+        throttle.release();
+        assertTrue(throttle.acquire());
+        assertEquals(2, throttle.getAdmitted());
+    }
+
+    @Test
+    public void rejectsAfterWaitingTooLong() throws InterruptedException {
+        RegistrationThrottle throttle = new RegistrationThrottle(1, 1, 10, 10);
+        assertTrue(throttle.acquire());
+        assertFalse(throttle.acquire());
+        assertEquals(1, throttle.getQueued());
+        assertEquals(1, throttle.getRejected());
+        assertEquals(0, throttle.getWaiting());
+    }
+
+    @Test
+    public void retryAfterIsSpreadOverTwiceTheDelay() {
+        RegistrationThrottle throttle = new RegistrationThrottle(1, 0, 0, 10);
+        for (int i = 0; i < 100; i++) {
+            int retryAfter = throttle.getRetryAfterSeconds();
+            assertTrue(retryAfter >= 10 && retryAfter <= 20);
+        }
+    }
+}
@@ -306,21 +306,35 @@ public class SwarmClientIntegrationTest {
         return Long.parseLong(Files.readString(pidFile, StandardCharsets.US_ASCII));
     }
 
+    @Test
+    public void updateLabelsViaFileRepeatedly() throws Exception {
+        Path labelsFile = Files.createTempFile(temporaryFolder.getRoot().toPath(), "labelsFile", ".txt");
+        Files.writeString(labelsFile, "first", StandardCharsets.UTF_8);
+
+        Node node = swarmClientRule.createSwarmClient(
+                "-labelsFile", labelsFile.toAbsolutePath().toString(), "-labels", "cli");
+
+        for (String labels : List.of("first second", "second third", "third")) {
+            Files.writeString(labelsFile, labels, StandardCharsets.UTF_8);
+            // the labels given on the command line are kept
+            Set<String> expected = decode("swarm cli " + labels);
+            while (!decode(node.getLabelString()).equals(expected)) {
+                Thread.sleep(100L);
+            }
+        }
+    }
+
     private void addRemoveLabelsViaFile(Set<String> labelsToRemove, Set<String> labelsToAdd, boolean withUniqueId)
             throws Exception {
         Path labelsFile = Files.createTempFile(temporaryFolder.getRoot().toPath(), "labelsFile", ".txt");
+        Files.writeString(labelsFile, encode(labelsToRemove), StandardCharsets.UTF_8);
 
         Node node;
         if (withUniqueId) {
-            node = swarmClientRule.createSwarmClient(
-                    "-labelsFile", labelsFile.toAbsolutePath().toString(), "-labels", encode(labelsToRemove));
+            node = swarmClientRule.createSwarmClient("-labelsFile", labelsFile.toAbsolutePath().toString());
         } else {
             node = swarmClientRule.createSwarmClient(
-                    "-disableClientsUniqueId",
-                    "-labelsFile",
-                    labelsFile.toAbsolutePath().toString(),
-                    "-labels",
-                    encode(labelsToRemove));
+                    "-disableClientsUniqueId", "-labelsFile", labelsFile.toAbsolutePath().toString());
         }
 
         String origLabels = node.getLabelString();
@@ -642,6 +656,11 @@ public class SwarmClientIntegrationTest {
 
         swarmClientRule.tearDown();
 
+        // Node removals are applied in batches, so wait for the removal to be applied.
+        while (j.getInstance().getNode("deleteagent") != null) {
+            Thread.sleep(100L);
+        }
+
         // Check that the agent was successfully removed
         Node node = j.getInstance().getNode("deleteagent");
         assertNull(node);